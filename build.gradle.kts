@@ -32,8 +32,9 @@ dependencies {
 
     implementation("androidx.annotation:annotation:1.5.0")
 
-    //testImplementation(platform("org.junit:junit-bom:5.10.0"))
-    //testImplementation("org.junit.jupiter:junit-jupiter")
+    testImplementation(platform("org.junit:junit-bom:5.10.0"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 tasks.withType<Jar> {
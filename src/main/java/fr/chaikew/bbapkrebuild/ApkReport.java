@@ -0,0 +1,81 @@
+package fr.chaikew.bbapkrebuild;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a preflight analysis of an apk.
+ *
+ * @author Chaikew
+ * @see SinumPatcher#analyze(java.io.File)
+ */
+public final class ApkReport {
+    /**
+     * Whether classes.dex contains the UE4 GameActivity class.
+     */
+    public final boolean hasGameActivity;
+
+    /**
+     * Whether GameActivity has the onCreate(Landroid/os/Bundle;)V
+     * method Sinum gets loaded from.
+     */
+    public final boolean hasOnCreate;
+
+    /**
+     * The archs (ABIs) of the UE4 native library found in the apk.
+     */
+    @NonNull
+    public final List<String> archs;
+
+    /**
+     * Whether the apk already contains io/sinum/Sinum or libsinum.so.
+     */
+    public final boolean alreadyPatched;
+
+    /**
+     * Size of the input apk, in bytes.
+     */
+    public final long inputSize;
+
+    /**
+     * Approximate size of the patched apk, in bytes.
+     */
+    public final long estimatedOutputSize;
+
+
+    ApkReport(
+            final boolean hasGameActivity, final boolean hasOnCreate, final @NonNull List<String> archs,
+            final boolean alreadyPatched, final long inputSize, final long estimatedOutputSize
+    ) {
+        this.hasGameActivity = hasGameActivity;
+        this.hasOnCreate = hasOnCreate;
+        this.archs = Collections.unmodifiableList(archs);
+        this.alreadyPatched = alreadyPatched;
+        this.inputSize = inputSize;
+        this.estimatedOutputSize = estimatedOutputSize;
+    }
+
+    /**
+     * Only the checks above are made: a malformed dex or a missing
+     * bundled libsinum.so still make the patch fail.
+     *
+     * @return Whether {@link SinumPatcher#sinumPatch} is expected to succeed on this apk
+     */
+    public boolean isPatchable() {
+        return this.hasOnCreate && !this.archs.isEmpty() && !this.alreadyPatched;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "    patchable       " + isPatchable() + "\n" +
+                "    game activity   " + this.hasGameActivity + "\n" +
+                "    onCreate        " + this.hasOnCreate + "\n" +
+                "    archs           " + this.archs + "\n" +
+                "    already patched " + this.alreadyPatched + "\n" +
+                "    input size      " + this.inputSize + "\n" +
+                "    output size     ~" + this.estimatedOutputSize;
+    }
+}
@@ -0,0 +1,25 @@
+package fr.chaikew.bbapkrebuild;
+
+/**
+ * Progress and cancellation callback of the low-resource patching mode.
+ * It is called from the patching thread.
+ *
+ * @author Chaikew
+ */
+public interface PatchListener {
+    /**
+     * Called as the input apk gets processed.
+     *
+     * @param processedBytes Uncompressed bytes of the input apk processed so far
+     * @param totalBytes     Uncompressed size of the input apk
+     */
+    void onProgress(long processedBytes, long totalBytes);
+
+    /**
+     * Polled while patching, the patch is aborted with an
+     * {@link java.io.InterruptedIOException} as soon as it returns true.
+     *
+     * @return Whether the patch should be cancelled
+     */
+    boolean isCancelled();
+}
@@ -0,0 +1,221 @@
+package fr.chaikew.bbapkrebuild;
+
+import androidx.annotation.NonNull;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * Index of already patched apks, kept in a cache directory.
+ * Each finished output is stored as "[key].apk", the key being
+ * the SHA-256 of everything the output depends on.
+ * This only works because the patch output is reproducible.
+ * <p>
+ * The input hashes are cached in "inputs.properties" by (canonical path,
+ * size, last modified time), so a memo hit doesn't read the input apk.
+ * At most maxEntries outputs, and maxBytes in total, are kept: the least
+ * recently used ones are evicted.
+ *
+ * @author Chaikew
+ */
+final class PatchMemo {
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final String INPUT_HASHES_NAME = "inputs.properties";
+    private static final String MEMO_SUFFIX = ".apk";
+
+    private final File memoDir;
+    private final int maxEntries;
+    private final long maxBytes;
+
+
+    PatchMemo(final @NonNull File memoDir, final int maxEntries, final long maxBytes) {
+        if (maxEntries < 1)
+            throw new RuntimeException("maxEntries is lower than 1: got " + maxEntries);
+        if (maxBytes < 0)
+            throw new RuntimeException("maxBytes is negative: got " + maxBytes);
+
+        this.memoDir = memoDir;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Computes the memo key of a patch.
+     *
+     * @param inputApk The apk to be patched, hashed in full unless its hash is cached
+     * @param target   Everything else the output depends on (server, signing key, patcher version...)
+     * @return The key, as an hexadecimal string
+     * @throws IOException File system errors
+     */
+    @NonNull
+    String key(final @NonNull File inputApk, final @NonNull String... target) throws IOException {
+        final MessageDigest keyDigest = sha256();
+        keyDigest.update(inputHash(inputApk).getBytes(StandardCharsets.US_ASCII));
+        for (final String part : target) {
+            keyDigest.update((byte) 0); // separator, so ("ab", "c") and ("a", "bc") differ
+            keyDigest.update(part.getBytes(StandardCharsets.UTF_8));
+        }
+        return toHex(keyDigest.digest());
+    }
+
+    /**
+     * SHA-256 of the input apk, served from the input hash cache when
+     * its size and last modified time didn't change.
+     */
+    @NonNull
+    private String inputHash(final @NonNull File inputApk) throws IOException {
+        final String path = inputApk.getCanonicalPath();
+        final String stamp = inputApk.length() + ":" + inputApk.lastModified() + ":";
+        final Properties hashes = loadInputHashes();
+
+        final String cached = hashes.getProperty(path);
+        if (cached != null && cached.startsWith(stamp))
+            return cached.substring(stamp.length());
+
+        final MessageDigest inputDigest = sha256();
+        final byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream is = Files.newInputStream(inputApk.toPath())) {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                inputDigest.update(buffer, 0, read);
+        }
+        final String hash = toHex(inputDigest.digest());
+
+        // forget the inputs that are gone, so the cache doesn't grow forever
+        for (final String cachedPath : hashes.stringPropertyNames()) {
+            if (!new File(cachedPath).isFile())
+                hashes.remove(cachedPath);
+        }
+        hashes.setProperty(path, stamp + hash);
+        storeInputHashes(hashes);
+        return hash;
+    }
+
+    /**
+     * Serves a memoized output, hard linked when the file system allows it, copied otherwise.
+     *
+     * @return Whether an output was memoized for this key
+     * @throws IOException File system errors
+     */
+    boolean restore(final @NonNull String key, final @NonNull File outputApk) throws IOException {
+        final File memoized = new File(this.memoDir, key + MEMO_SUFFIX);
+        if (!memoized.isFile())
+            return false;
+
+        // last modified time = last use, for the eviction
+        memoized.setLastModified(System.currentTimeMillis());
+
+        // never write through an existing file, it may be a link to another memoized output
+        Files.deleteIfExists(outputApk.toPath());
+        linkOrCopy(memoized, outputApk);
+        return true;
+    }
+
+    /**
+     * Memoizes a finished output.
+     *
+     * @throws IOException File system errors
+     */
+    void store(final @NonNull String key, final @NonNull File outputApk) throws IOException {
+        Files.createDirectories(this.memoDir.toPath());
+
+        final File memoized = new File(this.memoDir, key + MEMO_SUFFIX);
+        final File tmp = new File(this.memoDir, key + MEMO_SUFFIX + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+        linkOrCopy(outputApk, tmp);
+        Files.move(tmp.toPath(), memoized.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        memoized.setLastModified(System.currentTimeMillis());
+
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used outputs until at most maxEntries
+     * outputs, and maxBytes in total, are left.
+     *
+     * @throws IOException File system errors
+     */
+    void evict() throws IOException {
+        final File[] memoized = this.memoDir.listFiles((dir, name) -> name.endsWith(MEMO_SUFFIX));
+        if (memoized == null)
+            return;
+
+        // most recently used first
+        Arrays.sort(memoized, Comparator.comparingLong(File::lastModified).reversed());
+        long keptBytes = 0;
+        for (int i = 0; i < memoized.length; i++) {
+            keptBytes += memoized[i].length();
+            if (i >= this.maxEntries || keptBytes > this.maxBytes)
+                Files.deleteIfExists(memoized[i].toPath());
+        }
+    }
+
+    /**
+     * Deletes every memoized output and the input hash cache.
+     *
+     * @throws IOException File system errors
+     */
+    void clear() throws IOException {
+        FileUtils.deleteDirectory(this.memoDir);
+    }
+
+    @NonNull
+    private Properties loadInputHashes() throws IOException {
+        final Properties hashes = new Properties();
+        final File file = new File(this.memoDir, INPUT_HASHES_NAME);
+        if (file.isFile()) {
+            try (InputStream is = Files.newInputStream(file.toPath())) {
+                hashes.load(is);
+            }
+        }
+        return hashes;
+    }
+
+    private void storeInputHashes(final @NonNull Properties hashes) throws IOException {
+        Files.createDirectories(this.memoDir.toPath());
+
+        final File file = new File(this.memoDir, INPUT_HASHES_NAME);
+        final File tmp = new File(this.memoDir, INPUT_HASHES_NAME + ".tmp");
+        try (OutputStream os = Files.newOutputStream(tmp.toPath())) {
+            hashes.store(os, null);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void linkOrCopy(final @NonNull File from, final @NonNull File to) throws IOException {
+        try {
+            Files.createLink(to.toPath(), from.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. different volumes, or no hard link support (FAT sdcards)
+            Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @NonNull
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // mandatory algorithm
+        }
+    }
+
+    @NonNull
+    private static String toHex(final @NonNull byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,68 @@
+package fr.chaikew.bbapkrebuild;
+
+/**
+ * Resource limits of the low-resource patching mode, meant for
+ * running the patcher on the device itself.
+ *
+ * @author Chaikew
+ * @see SinumPatcher#sinumPatch(java.io.File, java.io.File, java.io.File, String, String, String, ResourceBudget, PatchListener)
+ */
+public final class ResourceBudget {
+    /**
+     * Budget fitting a 2 GB RAM phone: 96 MiB of heap,
+     * 256 MiB of cache and 64 KiB copy buffers.
+     */
+    public static final ResourceBudget LOW_END_DEVICE = new ResourceBudget(
+            96L * 1024 * 1024,
+            256L * 1024 * 1024,
+            64 * 1024
+    );
+
+    /**
+     * Heap the patch is expected to fit in, in bytes.
+     * It is further capped by Runtime->maxMemory().
+     * This is checked against an estimate of the dex rewrite
+     * before it starts, the actual allocations aren't bounded.
+     */
+    public final long heapBudget;
+
+    /**
+     * Maximum number of bytes the patch may write to the cache directory
+     * (the output apk is not counted).
+     */
+    public final long diskBudget;
+
+    /**
+     * Size of the buffer used to stream the apk entries, in bytes.
+     */
+    public final int bufferSize;
+
+
+    /**
+     * @param heapBudget Heap the patch is expected to fit in, in bytes (checked against an estimate)
+     * @param diskBudget Maximum number of bytes the patch may write to the cache directory
+     * @param bufferSize Size of the buffer used to stream the apk entries, in bytes. Must be between 4 KiB and heapBudget
+     */
+    public ResourceBudget(final long heapBudget, final long diskBudget, final int bufferSize) {
+        if (bufferSize < 4096)
+            throw new RuntimeException("bufferSize is lower than 4096 bytes: got " + bufferSize);
+
+        if (bufferSize > heapBudget)
+            throw new RuntimeException("bufferSize (" + bufferSize + ") doesn't fit in heapBudget (" + heapBudget + ")");
+
+        if (diskBudget < 0)
+            throw new RuntimeException("diskBudget is negative: got " + diskBudget);
+
+        this.heapBudget = heapBudget;
+        this.diskBudget = diskBudget;
+        this.bufferSize = bufferSize;
+    }
+
+    public ResourceBudget withHeapBudget(final long newHeapBudget) {
+        return new ResourceBudget(newHeapBudget, diskBudget, bufferSize);
+    }
+
+    public ResourceBudget withDiskBudget(final long newDiskBudget) {
+        return new ResourceBudget(heapBudget, newDiskBudget, bufferSize);
+    }
+}
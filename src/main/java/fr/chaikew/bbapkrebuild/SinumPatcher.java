@@ -1,30 +1,66 @@
 package fr.chaikew.bbapkrebuild;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import fr.chaikew.signing.SignedJar;
 import fr.chaikew.signing.SignerConfig;
+import fr.chaikew.zip.BufferPool;
+import fr.chaikew.zip.ZipAppender;
+import fr.chaikew.zip.ZipCentralDirectory;
+import fr.chaikew.zip.ZipEntryReader;
 import com.iyxan23.zipalignjava.InvalidZipException;
 import com.iyxan23.zipalignjava.ZipAlign;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.jf.baksmali.Baksmali;
 import org.jf.baksmali.BaksmaliOptions;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
 import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
 import org.jf.smali.Smali;
 import org.jf.smali.SmaliOptions;
 
 import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -40,6 +76,57 @@ public final class SinumPatcher {
     public static final int DEX_API_LEVEL = 19;
     public static final int DEX_SMALI_THREADS = 1;
 
+    /**
+     * Version of the patch itself, part of the memo key: bump it
+     * whenever a change alters the produced apks.
+     */
+    public static final String PATCHER_VERSION = "1.1";
+
+    /**
+     * Maximum number of outputs kept by {@link #sinumPatchMemoized}.
+     */
+    public static final int MEMO_MAX_ENTRIES = 4;
+
+    /**
+     * Maximum total size of the outputs kept by {@link #sinumPatchMemoized}, in bytes.
+     */
+    public static final long MEMO_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+
+    private static final String UE4_GAME_ACTIVITY_CLASS = "Lcom/epicgames/ue4/GameActivity;";
+    private static final String SINUM_CLASS = "Lio/sinum/Sinum;";
+
+    /**
+     * Baksmali output of the onCreate the native library loader gets injected
+     * into: public, any other modifiers (final, ...), with code. Must accept the
+     * same methods as {@link #isInjectableOnCreate(Method)}.
+     */
+    private static final Pattern ON_CREATE_PATTERN =
+            Pattern.compile("\\.method public (?:[a-z-]+ )*onCreate\\(Landroid/os/Bundle;\\)V\\s*\\.registers \\d+");
+
+    /**
+     * Manifest, signature file and signature block are rebuilt on every
+     * patch, this is a ballpark of their (compressed) size.
+     */
+    private static final long ESTIMATED_SIGNATURE_OVERHEAD = 64 * 1024;
+
+    /**
+     * Estimate of the heap used to rewrite a dex in memory, as a multiple
+     * of its size (raw bytes + dexlib2 pool). Only used to reject a dex
+     * before rewriting it, what dexlib2 actually allocates isn't bounded.
+     */
+    private static final int DEX_REWRITE_HEAP_FACTOR_ESTIMATE = 6;
+
+    /**
+     * Size of the pooled buffers the apk entries are copied with.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Alignment of the entries appended by {@link #sinumPatchInPlace},
+     * the largest alignment zipalign uses (native libraries).
+     */
+    private static final int APPEND_ALIGNMENT = 4096;
+
     /**
      * Api level of the Dalvik EXecutable (DEX) file.
      */
@@ -51,6 +138,18 @@ public final class SinumPatcher {
      */
     public final int smaliThreads;
 
+    /**
+     * Signing key and digest settings. A relative keystore
+     * path is resolved against the cache directory.
+     */
+    @NonNull
+    public final SignerConfig signerConfig;
+
+    /**
+     * Copy buffers, reused across entries and across patches.
+     */
+    private final BufferPool bufferPool = new BufferPool(COPY_BUFFER_SIZE);
+
 
     /**
      * Default constructor.
@@ -85,8 +184,28 @@ public final class SinumPatcher {
      *
      * @see #DEX_API_LEVEL
      * @see #DEX_SMALI_THREADS
+     * @see #SinumPatcher(int, int, SignerConfig)
      */
     public SinumPatcher(final int apiLevel, final int smaliThreads) {
+        this(apiLevel, smaliThreads, SignerConfig.DEFAULT_CONFIG);
+    }
+
+    /**
+     * Constructor to use custom api level, custom thread
+     * counts and custom signing settings.
+     *
+     * @param apiLevel Api level use to read the Dalvik EXecutable (DEX) file. Must be greater or equals to 15.
+     * @param smaliThreads The number of threads used to convert between DEX and SMALI. Must be between 1 and Runtime->availableProcessors()
+     * @param signerConfig The signing settings (e.g. SignerConfig->EC_CONFIG for faster key generation and signing)
+     *
+     * @see #DEX_API_LEVEL
+     * @see #DEX_SMALI_THREADS
+     * @see SignerConfig#DEFAULT_CONFIG
+     * @see SignerConfig#EC_CONFIG
+     */
+    public SinumPatcher(final int apiLevel, final int smaliThreads, final @NonNull SignerConfig signerConfig) {
+        Objects.requireNonNull(signerConfig, "SinumPatcher->SinumPatcher(...)  signerConfig was null");
+
         if (apiLevel < DEX_MIN_API_LEVEL)
             throw new RuntimeException("apiLevel is lower than the minimum supported version: expected >= " + DEX_MIN_API_LEVEL + " got " + apiLevel);
 
@@ -98,6 +217,7 @@ public final class SinumPatcher {
 
         this.apiLevel = apiLevel;
         this.smaliThreads = smaliThreads;
+        this.signerConfig = signerConfig;
     }
 
 
@@ -112,6 +232,8 @@ public final class SinumPatcher {
      * @param port      The target server port (e.g. "1234")
      * @throws IOException       File system / bundled files errors
      * @throws SecurityException Certificate and signing issues
+     *
+     * @see #sinumPatch(File, File, File, String, String, String, ResourceBudget, PatchListener)
      */
     public void sinumPatch(
             final @NonNull File inputApk, final @NonNull File outputApk, final @NonNull File cacheDir,
@@ -137,59 +259,52 @@ public final class SinumPatcher {
         if (tmpDir.exists())
             FileUtils.cleanDirectory(tmpDir);
 
-        final SignerConfig signerConfig = SignerConfig.DEFAULT_CONFIG
-                .withPath(new File(cacheDir, "keystore.bks").getAbsolutePath());
+        final SignerConfig signerConfig = signerConfig(cacheDir);
 
         ArchFilter archFilter = new ArchFilter();
-        try (OutputStream os = Files.newOutputStream(outApkTmp.toPath())) {
-            try (SignedJar outputApkZ = signerConfig.createSignedJar(os)) {
-                try (ZipFile inputApkZ = new ZipFile(inputApk)) {
-                    Enumeration<? extends ZipEntry> entries = inputApkZ.entries();
-
-                    while (entries.hasMoreElements()) {
-                        ZipEntry entry = entries.nextElement();
-
-                        try (InputStream is = inputApkZ.getInputStream(entry)) {
-                            byte[] bytes = IOUtils.toByteArray(is);
+        final ByteBuffer copyBuffer = this.bufferPool.acquire();
+        try (
+                FileChannel inputChannel = FileChannel.open(inputApk.toPath(), StandardOpenOption.READ);
+                ZipEntryReader entryReader = new ZipEntryReader(inputChannel, this.bufferPool)
+        ) {
+            final byte[] buffer = copyBuffer.array();
+            final ZipCentralDirectory inputApkZ = ZipCentralDirectory.read(inputChannel);
 
-                            // transform dex
-                            if (entry.getName().equals("classes.dex")) {
-                                Files.write(originalDexTmp.toPath(), bytes);
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(outApkTmp.toPath()), buffer.length)) {
+                try (SignedJar outputApkZ = signerConfig.createSignedJar(os)) {
+                    for (final ZipCentralDirectory.Entry entry : inputApkZ.entries()) {
+                        final boolean compression = entry.compressedSize != entry.size;
+                        entryReader.open(entry);
 
-                                DexClasses_disassemble(originalDexTmp, smaliDir);
-                                DexClasses_injectSinum(smaliDir, protocol, host, port);
-                                DexClasses_assemble(smaliDir, patchedDexTmp);
-
-                                bytes = Files.readAllBytes(patchedDexTmp.toPath());
+                        // transform dex
+                        if (entry.name.equals("classes.dex")) {
+                            try (OutputStream dexOut = Files.newOutputStream(originalDexTmp.toPath())) {
+                                IOUtils.copyLarge(entryReader, dexOut, buffer);
                             }
 
-                            if (entry.getName().equals("lib/arm64-v8a/libUE4.so")) archFilter.arm64v8a = true;
-                            if (entry.getName().equals("lib/armeabi-v7a/libUE4.so")) archFilter.armeabiv7a = true;
-                            if (entry.getName().equals("lib/x86_64/libUE4.so")) archFilter.x86_64 = true;
+                            DexClasses_disassemble(originalDexTmp, smaliDir);
+                            DexClasses_injectSinum(smaliDir, protocol, host, port);
+                            DexClasses_assemble(smaliDir, patchedDexTmp);
 
-                            outputApkZ.addFileContents(entry.getName(), bytes, entry.getCompressedSize() != entry.getSize(), true);
+                            addPatchedDex(outputApkZ, entry.name, patchedDexTmp, compression, buffer);
+                            continue;
                         }
-                    }
-                }
-
-                // Append the Sinum native libraries
-                final ClassLoader cl = SinumPatcher.class.getClassLoader();
-                final List<String> archs = archFilter.toList();
 
-                for (final String arch : archs) {
-                    final String vpath = "sinum/" + arch + "/libsinum.so";
-                    try (final InputStream soStream = cl.getResourceAsStream(vpath)) {
-                        if (soStream == null)
-                            throw new IOException("Couldn't load: " + vpath);
-                        final byte[] bytes = IOUtils.toByteArray(soStream);
+                        archFilter.accept(entry.name);
 
-                        outputApkZ.addFileContents("lib/" + arch + "/libsinum.so", bytes, true);
+                        outputApkZ.addFileContents(entry.name, entryReader, entry.size, entry.crc, compression, buffer);
                     }
+
+                    addSinumLibraries(outputApkZ, archFilter.toList(), buffer);
                 }
             }
+        } finally {
+            this.bufferPool.release(copyBuffer);
         }
 
         try (RandomAccessFile zipIn = new RandomAccessFile(outApkTmp, "r")) {
+            // never write through an existing file, it may be a link to a memoized output
+            Files.deleteIfExists(outputApk.toPath());
             try (OutputStream zipOut = Files.newOutputStream(outputApk.toPath())) {
                 ZipAlign.alignZip(zipIn, zipOut);
             } catch (InvalidZipException e) {
@@ -198,6 +313,560 @@ public final class SinumPatcher {
         }
     }
 
+    /**
+     * Injects Sinum into a given apk, or serves the output of an identical
+     * earlier patch from the cache directory.
+     * <p>
+     * Patch outputs are reproducible for a given keystore, so they are memoized
+     * in cacheDir/memo by (input apk hash, target server, signing certificate,
+     * patcher version). A repeated patch is then a hard link (or a copy) of the
+     * memoized apk. The keystore is generated with a random key the first time
+     * it's needed, so another cache directory (or a wiped one) gives different,
+     * equally valid outputs for the same input.
+     * <p>
+     * The input apk is only hashed when its size or last modified time changed.
+     * At most {@link #MEMO_MAX_ENTRIES} outputs ({@link #MEMO_MAX_BYTES} in total)
+     * are kept, the least recently used are evicted; see also {@link #clearPatchMemo(File)}.
+     *
+     * @param inputApk  The apk to be patched (= injected with Sinum)
+     * @param outputApk The output (patched) apk
+     * @param cacheDir  A cache directory (e.g. Android Context->getExternalCacheDir())
+     * @param protocol  The web protocol used by the target server (e.g. "http" or "https")
+     * @param host      The target server address (e.g. "example.com" or "127.0.0.1")
+     * @param port      The target server port (e.g. "1234")
+     * @return Whether the output was served from the memo
+     * @throws IOException       File system / bundled files errors
+     * @throws SecurityException Certificate and signing issues
+     *
+     * @see #sinumPatch(File, File, File, String, String, String)
+     */
+    public boolean sinumPatchMemoized(
+            final @NonNull File inputApk, final @NonNull File outputApk, final @NonNull File cacheDir,
+            final @NonNull String protocol, final @NonNull String host, final @NonNull String port
+    ) throws IOException {
+        Objects.requireNonNull(inputApk, "SinumPatcher->sinumPatchMemoized(...)  inputApk was null");
+        Objects.requireNonNull(outputApk, "SinumPatcher->sinumPatchMemoized(...)  outputApk was null");
+        Objects.requireNonNull(cacheDir, "SinumPatcher->sinumPatchMemoized(...)  cacheDir was null");
+        Objects.requireNonNull(protocol, "SinumPatcher->sinumPatchMemoized(...)  protocol was null");
+        Objects.requireNonNull(host, "SinumPatcher->sinumPatchMemoized(...)  host was null");
+        Objects.requireNonNull(port, "SinumPatcher->sinumPatchMemoized(...)  port was null");
+
+        final PatchMemo memo = patchMemo(cacheDir);
+        final String key = memo.key(
+                inputApk, protocol, host, port,
+                Base64.getEncoder().encodeToString(signerConfig(cacheDir).certificateFingerprint()),
+                this.signerConfig.digestAlgorithm, PATCHER_VERSION, Integer.toString(this.apiLevel)
+        );
+
+        if (memo.restore(key, outputApk))
+            return true;
+
+        sinumPatch(inputApk, outputApk, cacheDir, protocol, host, port);
+        memo.store(key, outputApk);
+        return false;
+    }
+
+    /**
+     * Deletes the outputs memoized by {@link #sinumPatchMemoized}
+     * (the keystore is kept).
+     *
+     * @param cacheDir The cache directory given to sinumPatchMemoized
+     * @throws IOException File system errors
+     */
+    public void clearPatchMemo(final @NonNull File cacheDir) throws IOException {
+        Objects.requireNonNull(cacheDir, "SinumPatcher->clearPatchMemo(...)  cacheDir was null");
+
+        patchMemo(cacheDir).clear();
+    }
+
+    @NonNull
+    private static PatchMemo patchMemo(final @NonNull File cacheDir) {
+        return new PatchMemo(new File(cacheDir, "memo"), MEMO_MAX_ENTRIES, MEMO_MAX_BYTES);
+    }
+
+    /**
+     * Injects Sinum into a given apk within the given resource limits
+     * (e.g. on the device itself).
+     * <p>
+     * Unlike {@link #sinumPatch(File, File, File, String, String, String)}, the apk
+     * entries are streamed through a single buffer, classes.dex is patched in memory
+     * instead of going through smali files, and the output apk is aligned while being
+     * written instead of going through a temporary apk.
+     *
+     * @param inputApk  The apk to be patched (= injected with Sinum)
+     * @param outputApk The output (patched) apk
+     * @param cacheDir  A cache directory (e.g. Android Context->getExternalCacheDir())
+     * @param protocol  The web protocol used by the target server (e.g. "http" or "https")
+     * @param host      The target server address (e.g. "example.com" or "127.0.0.1")
+     * @param port      The target server port (e.g. "1234")
+     * @param budget    The heap / cache limits to stay within
+     * @param listener  Progress and cancellation callback, may be null
+     * @throws IOException            File system / bundled files errors, the apk doesn't fit in the budget,
+     *                                or inputApk and outputApk are the same file
+     * @throws InterruptedIOException The listener cancelled the patch
+     * @throws SecurityException      Certificate and signing issues
+     */
+    public void sinumPatch(
+            final @NonNull File inputApk, final @NonNull File outputApk, final @NonNull File cacheDir,
+            final @NonNull String protocol, final @NonNull String host, final @NonNull String port,
+            final @NonNull ResourceBudget budget, final @Nullable PatchListener listener
+    ) throws IOException {
+        Objects.requireNonNull(inputApk, "SinumPatcher->sinumPatch(...)  inputApk was null");
+        Objects.requireNonNull(outputApk, "SinumPatcher->sinumPatch(...)  outputApk was null");
+        Objects.requireNonNull(cacheDir, "SinumPatcher->sinumPatch(...)  cacheDir was null");
+        Objects.requireNonNull(protocol, "SinumPatcher->sinumPatch(...)  protocol was null");
+        Objects.requireNonNull(host, "SinumPatcher->sinumPatch(...)  host was null");
+        Objects.requireNonNull(port, "SinumPatcher->sinumPatch(...)  port was null");
+        Objects.requireNonNull(budget, "SinumPatcher->sinumPatch(...)  budget was null");
+
+        // the output is unlinked before it is written, it must not be the input
+        if (inputApk.getCanonicalFile().equals(outputApk.getCanonicalFile()))
+            throw new IOException("inputApk and outputApk are the same file: " + inputApk);
+
+        final File tmpDir = new File(cacheDir, "tmp");
+        final File patchedDexTmp = new File(tmpDir, "classes-patched.dex");
+
+        FileUtils.forceMkdir(tmpDir);
+        FileUtils.cleanDirectory(tmpDir);
+
+        final SignerConfig signerConfig = signerConfig(cacheDir);
+
+        final long heapBudget = Math.min(budget.heapBudget, Runtime.getRuntime().maxMemory());
+        // one buffer to copy with, one for the entry reader: the only per-patch buffers
+        final BufferPool bufferPool = new BufferPool(budget.bufferSize);
+        final byte[] buffer = bufferPool.acquire().array();
+        boolean outputReplaced = false;
+
+        try (
+                FileChannel inputChannel = FileChannel.open(inputApk.toPath(), StandardOpenOption.READ);
+                ZipEntryReader entryReader = new ZipEntryReader(inputChannel, bufferPool)
+        ) {
+            // only the central directory is needed to plan the patch
+            final ZipCentralDirectory inputApkZ = ZipCentralDirectory.read(inputChannel);
+            final ArchFilter archFilter = new ArchFilter();
+            long totalBytes = 0;
+
+            for (final ZipCentralDirectory.Entry entry : inputApkZ.entries()) {
+                archFilter.accept(entry.name);
+                totalBytes += entry.size;
+            }
+
+            final ZipCentralDirectory.Entry dexEntry = inputApkZ.find("classes.dex");
+            if (dexEntry == null)
+                throw new FileNotFoundException("Failed to find classes.dex in " + inputApk);
+
+            final long dexSize = dexEntry.size;
+            if (dexSize > Integer.MAX_VALUE)
+                throw new IOException("Invalid classes.dex size: " + dexSize);
+            if (dexSize * DEX_REWRITE_HEAP_FACTOR_ESTIMATE + 2L * budget.bufferSize > heapBudget)
+                throw new IOException("classes.dex (" + dexSize + " bytes) can't be patched within the heap budget (" + heapBudget + " bytes)");
+            if (dexSize > budget.diskBudget)
+                throw new IOException("classes.dex (" + dexSize + " bytes) can't be patched within the disk budget (" + budget.diskBudget + " bytes)");
+
+            final ProgressTracker progress = new ProgressTracker(listener, totalBytes);
+            progress.checkCancelled();
+
+            // transform dex
+            final byte[] dexBytes = new byte[(int) dexSize];
+            entryReader.open(dexEntry);
+            IOUtils.readFully(entryReader, dexBytes);
+            DexClasses_rewrite(dexBytes, patchedDexTmp, protocol, host, port);
+            if (patchedDexTmp.length() > budget.diskBudget)
+                throw new IOException("patched classes.dex (" + patchedDexTmp.length() + " bytes) exceeds the disk budget (" + budget.diskBudget + " bytes)");
+            progress.advance(dexSize);
+
+            Files.deleteIfExists(outputApk.toPath());
+            outputReplaced = true;
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(outputApk.toPath()), budget.bufferSize)) {
+                try (SignedJar outputApkZ = signerConfig.createSignedJar(os)) {
+                    outputApkZ.setZipAligned(true);
+
+                    final InputStream trackedReader = progress.track(entryReader);
+                    for (final ZipCentralDirectory.Entry entry : inputApkZ.entries()) {
+                        final boolean compression = entry.compressedSize != entry.size;
+
+                        if (entry.name.equals("classes.dex")) {
+                            addPatchedDex(outputApkZ, entry.name, patchedDexTmp, compression, buffer);
+                            continue;
+                        }
+
+                        entryReader.open(entry);
+                        outputApkZ.addFileContents(entry.name, trackedReader, entry.size, entry.crc, compression, buffer);
+                    }
+
+                    addSinumLibraries(outputApkZ, archFilter.toList(), buffer);
+                    progress.checkCancelled();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // only a partial output of this call, an earlier failure leaves the existing file alone
+            if (outputReplaced)
+                FileUtils.deleteQuietly(outputApk);
+            throw e;
+        } finally {
+            FileUtils.deleteQuietly(patchedDexTmp);
+        }
+    }
+
+    /**
+     * Injects Sinum into a copy of a given apk by appending to the copy rather
+     * than rewriting it.
+     * <p>
+     * The input is copied to the output once, then classes.dex, the Sinum libraries
+     * and the signature files are appended after the last kept entry and only the
+     * central directory is rewritten, so patch I/O scales with the changed entries
+     * instead of with the apk. The replaced entries' old bytes may stay in the apk,
+     * unreferenced. The input itself is never written to.
+     * <p>
+     * The kept entries are signed with their digests from the input manifest, in
+     * the input's digest algorithm (SHA-1 or SHA-256) when it differs from the
+     * signer config's. The manifest is only trusted when the input's signature
+     * file has a matching manifest digest, otherwise every kept entry is
+     * decompressed and hashed. Past that check the input is assumed to be
+     * installable: its entries aren't re-hashed against their manifest digests
+     * and the signature block itself isn't verified, so an input whose entries
+     * don't match its manifest gives an output that fails to install.
+     *
+     * @param inputApk  The apk to be patched (= injected with Sinum)
+     * @param outputApk The output (patched) apk, must not be inputApk
+     * @param cacheDir  A cache directory (e.g. Android Context->getExternalCacheDir())
+     * @param protocol  The web protocol used by the target server (e.g. "http" or "https")
+     * @param host      The target server address (e.g. "example.com" or "127.0.0.1")
+     * @param port      The target server port (e.g. "1234")
+     * @throws IOException       File system / bundled files errors, or inputApk and outputApk are the same file.
+     *                           The output is then deleted.
+     * @throws SecurityException Certificate and signing issues
+     *
+     * @see #sinumPatch(File, File, File, String, String, String)
+     */
+    public void sinumPatchInPlace(
+            final @NonNull File inputApk, final @NonNull File outputApk, final @NonNull File cacheDir,
+            final @NonNull String protocol, final @NonNull String host, final @NonNull String port
+    ) throws IOException {
+        Objects.requireNonNull(inputApk, "SinumPatcher->sinumPatchInPlace(...)  inputApk was null");
+        Objects.requireNonNull(outputApk, "SinumPatcher->sinumPatchInPlace(...)  outputApk was null");
+        Objects.requireNonNull(cacheDir, "SinumPatcher->sinumPatchInPlace(...)  cacheDir was null");
+        Objects.requireNonNull(protocol, "SinumPatcher->sinumPatchInPlace(...)  protocol was null");
+        Objects.requireNonNull(host, "SinumPatcher->sinumPatchInPlace(...)  host was null");
+        Objects.requireNonNull(port, "SinumPatcher->sinumPatchInPlace(...)  port was null");
+
+        // a failed append leaves the apk corrupt, so it must never be the only copy
+        if (inputApk.getCanonicalFile().equals(outputApk.getCanonicalFile()))
+            throw new IOException("inputApk and outputApk are the same file: " + inputApk);
+
+        final File tmpDir = new File(cacheDir, "tmp");
+        final File patchedDexTmp = new File(tmpDir, "classes-patched.dex");
+        final File changedEntriesTmp = new File(tmpDir, "changed-entries.zip");
+
+        FileUtils.forceMkdir(tmpDir);
+        FileUtils.cleanDirectory(tmpDir);
+
+        // never write through an existing file, it may be a link to a memoized output
+        Files.deleteIfExists(outputApk.toPath());
+
+        final ByteBuffer copyBuffer = this.bufferPool.acquire();
+        try {
+            // the file system may clone the file rather than copying its bytes
+            Files.copy(inputApk.toPath(), outputApk.toPath());
+            appendPatch(outputApk, cacheDir, patchedDexTmp, changedEntriesTmp, protocol, host, port, copyBuffer.array());
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(outputApk);
+            throw e;
+        } finally {
+            this.bufferPool.release(copyBuffer);
+            FileUtils.deleteQuietly(patchedDexTmp);
+            FileUtils.deleteQuietly(changedEntriesTmp);
+        }
+    }
+
+    /**
+     * The append step of {@link #sinumPatchInPlace}, done on the copy of the input.
+     */
+    private void appendPatch(
+            final @NonNull File apk, final @NonNull File cacheDir, final @NonNull File patchedDexTmp, final @NonNull File changedEntriesTmp,
+            final @NonNull String protocol, final @NonNull String host, final @NonNull String port, final @NonNull byte[] buffer
+    ) throws IOException {
+        try (
+                FileChannel apkChannel = FileChannel.open(apk.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                ZipEntryReader entryReader = new ZipEntryReader(apkChannel, this.bufferPool)
+        ) {
+            final ZipCentralDirectory apkZ = ZipCentralDirectory.read(apkChannel);
+            final ArchFilter archFilter = new ArchFilter();
+            final List<ZipCentralDirectory.Entry> keptEntries = new ArrayList<>();
+
+            for (final ZipCentralDirectory.Entry entry : apkZ.entries()) {
+                archFilter.accept(entry.name);
+                if (!entry.name.equals("classes.dex") && !SignedJar.isSignatureFile(entry.name) && !isSinumLibrary(entry.name))
+                    keptEntries.add(entry);
+            }
+
+            final ZipCentralDirectory.Entry dexEntry = apkZ.find("classes.dex");
+            if (dexEntry == null)
+                throw new FileNotFoundException("Failed to find classes.dex in " + apk);
+            if (dexEntry.size > Integer.MAX_VALUE)
+                throw new IOException("Invalid classes.dex size: " + dexEntry.size);
+
+            // transform dex
+            final byte[] dexBytes = new byte[(int) dexEntry.size];
+            entryReader.open(dexEntry);
+            IOUtils.readFully(entryReader, dexBytes);
+            DexClasses_rewrite(dexBytes, patchedDexTmp, protocol, host, port);
+
+            // the changed entries and the signature, as a standalone zip
+            final Manifest manifest = readTrustedManifest(apkZ, entryReader);
+            final SignerConfig signerConfig = signerConfig(cacheDir)
+                    .withDigestAlgorithm(manifestDigestAlgorithm(manifest, this.signerConfig.digestAlgorithm));
+            final Map<String, String> manifestDigests = manifestDigests(manifest, signerConfig.digestAlgorithm);
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(changedEntriesTmp.toPath()), buffer.length)) {
+                try (SignedJar changedZ = signerConfig.createSignedJar(os)) {
+                    changedZ.setZipAligned(true);
+
+                    for (final ZipCentralDirectory.Entry entry : keptEntries) {
+                        final String digest = manifestDigests.get(entry.name);
+                        changedZ.addFileDigest(entry.name, digest != null
+                                ? Base64.getDecoder().decode(digest.trim())
+                                : digestEntry(entryReader, entry, signerConfig.digestAlgorithm, buffer));
+                    }
+
+                    addPatchedDex(changedZ, dexEntry.name, patchedDexTmp, dexEntry.compressedSize != dexEntry.size, buffer);
+                    addSinumLibraries(changedZ, archFilter.toList(), buffer);
+                }
+            }
+
+            // page aligned append, so the alignment of the changed entries carries over
+            try (FileChannel changedChannel = FileChannel.open(changedEntriesTmp.toPath(), StandardOpenOption.READ)) {
+                ZipAppender.append(apkChannel, apkZ, keptEntries, changedChannel, APPEND_ALIGNMENT);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a given apk can be patched, without patching it.
+     * Only the zip central directory and the class / method indexes of
+     * classes.dex are read, no smali is produced.
+     *
+     * @param inputApk The apk to be analyzed
+     * @return The analysis report
+     * @throws IOException File system errors or malformed apk / dex
+     */
+    @NonNull
+    public ApkReport analyze(final @NonNull File inputApk) throws IOException {
+        Objects.requireNonNull(inputApk, "SinumPatcher->analyze(...)  inputApk was null");
+
+        final ArchFilter archFilter = new ArchFilter();
+        boolean sinumLibraryPresent = false;
+        boolean sinumClassPresent = false;
+        boolean gameActivityPresent = false;
+        boolean onCreatePresent = false;
+        long estimatedOutputSize = 0;
+
+        try (ZipFile inputApkZ = new ZipFile(inputApk)) {
+            ZipEntry dexEntry = null;
+            Enumeration<? extends ZipEntry> entries = inputApkZ.entries();
+
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+
+                archFilter.accept(name);
+                if (isSinumLibrary(name))
+                    sinumLibraryPresent = true;
+                if (name.equals("classes.dex"))
+                    dexEntry = entry;
+
+                // the signature files are regenerated, the rest is carried over (classes.dex being roughly the same size)
+                if (!SignedJar.isSignatureFile(name))
+                    estimatedOutputSize += estimateEntrySize(name, entry.getCompressedSize());
+            }
+
+            if (dexEntry != null) {
+                final byte[] dexBytes;
+                try (InputStream is = inputApkZ.getInputStream(dexEntry)) {
+                    dexBytes = IOUtils.toByteArray(is);
+                }
+
+                // class defs and methods are decoded on access, only the ones we look at are parsed
+                DexBackedDexFile dex = new DexBackedDexFile(Opcodes.forApi(this.apiLevel), dexBytes);
+                for (DexBackedClassDef classDef : dex.getClasses()) {
+                    if (classDef.getType().equals(SINUM_CLASS)) {
+                        sinumClassPresent = true;
+                    } else if (classDef.getType().equals(UE4_GAME_ACTIVITY_CLASS)) {
+                        gameActivityPresent = true;
+                        for (DexBackedMethod method : classDef.getMethods())
+                            onCreatePresent |= isInjectableOnCreate(method);
+                    }
+                }
+            }
+        }
+
+        final List<String> archs = archFilter.toList();
+        final ClassLoader cl = SinumPatcher.class.getClassLoader();
+        for (final String arch : archs) {
+            final String vpath = "sinum/" + arch + "/libsinum.so";
+            final URL soUrl = cl.getResource(vpath);
+            if (soUrl != null)
+                estimatedOutputSize += estimateEntrySize("lib/" + arch + "/libsinum.so", resourceLength(soUrl));
+        }
+        estimatedOutputSize += ESTIMATED_SIGNATURE_OVERHEAD;
+
+        return new ApkReport(
+                gameActivityPresent, onCreatePresent, archs,
+                sinumClassPresent || sinumLibraryPresent,
+                inputApk.length(), estimatedOutputSize
+        );
+    }
+
+    /**
+     * Whether the method is the public onCreate(Landroid/os/Bundle;)V
+     * (with code) the native library loader gets injected into.
+     * Must accept the same methods as {@link #ON_CREATE_PATTERN}.
+     */
+    private static boolean isInjectableOnCreate(final @NonNull Method method) {
+        final List<? extends CharSequence> parameterTypes = method.getParameterTypes();
+        return method.getName().equals("onCreate")
+                && method.getReturnType().equals("V")
+                && parameterTypes.size() == 1
+                && parameterTypes.get(0).toString().equals("Landroid/os/Bundle;")
+                && (method.getAccessFlags() & AccessFlags.PUBLIC.getValue()) != 0
+                && method.getImplementation() != null;
+    }
+
+    /**
+     * Size of a class path resource, without leaking the stream
+     * {@link URLConnection#getContentLengthLong()} opens.
+     */
+    private static long resourceLength(final @NonNull URL url) throws IOException {
+        final File file = FileUtils.toFile(url);
+        if (file != null)
+            return file.length();
+
+        final URLConnection connection = url.openConnection();
+        final long length = connection.getContentLengthLong();
+        connection.getInputStream().close();
+        return length;
+    }
+
+    /**
+     * Rough size of an entry in the output apk: local header, data,
+     * data descriptor and central directory record.
+     */
+    private static long estimateEntrySize(final @NonNull String name, final long dataSize) {
+        final int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        return 30 + nameLength + Math.max(dataSize, 0) + 16 + 46 + nameLength;
+    }
+
+    private static boolean isSinumLibrary(final @NonNull String name) {
+        return name.startsWith("lib/") && name.endsWith("/libsinum.so");
+    }
+
+    /**
+     * Reads the apk manifest, if the apk's signature file has a matching
+     * "[algorithm]-Digest-Manifest". The signature block isn't verified.
+     *
+     * @return The manifest, null if there is none or it doesn't match the signature file
+     */
+    @Nullable
+    private static Manifest readTrustedManifest(final @NonNull ZipCentralDirectory apkZ, final @NonNull ZipEntryReader entryReader) throws IOException {
+        final ZipCentralDirectory.Entry manifestEntry = apkZ.find(JarFile.MANIFEST_NAME);
+        ZipCentralDirectory.Entry sigFileEntry = null;
+        for (final ZipCentralDirectory.Entry entry : apkZ.entries()) {
+            if (entry.name.startsWith("META-INF/") && entry.name.endsWith(".SF") && entry.name.indexOf('/', 9) < 0) {
+                sigFileEntry = entry;
+                break;
+            }
+        }
+        if (manifestEntry == null || sigFileEntry == null || manifestEntry.size > Integer.MAX_VALUE)
+            return null;
+
+        final byte[] manifestBytes = new byte[(int) manifestEntry.size];
+        entryReader.open(manifestEntry);
+        IOUtils.readFully(entryReader, manifestBytes);
+
+        entryReader.open(sigFileEntry);
+        final Attributes sigFileAttributes = new Manifest(entryReader).getMainAttributes();
+        for (final String digestAlgorithm : Arrays.asList(SignerConfig.DIGEST_ALGORITHM_SHA256, SignerConfig.DIGEST_ALGORITHM_SHA1)) {
+            final String manifestDigest = sigFileAttributes.getValue(digestAlgorithm + "-Digest-Manifest");
+            if (manifestDigest != null && MessageDigest.isEqual(
+                    Base64.getDecoder().decode(manifestDigest.trim()),
+                    messageDigest(digestAlgorithm).digest(manifestBytes))) {
+                return new Manifest(new ByteArrayInputStream(manifestBytes));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The digest algorithm the kept entries are best signed with: the preferred
+     * one if the manifest uses it, else the other supported one it uses, so that
+     * no entry has to be hashed again.
+     */
+    @NonNull
+    private static String manifestDigestAlgorithm(final @Nullable Manifest manifest, final @NonNull String preferred) {
+        if (manifest == null || hasDigests(manifest, preferred))
+            return preferred;
+
+        for (final String digestAlgorithm : Arrays.asList(SignerConfig.DIGEST_ALGORITHM_SHA256, SignerConfig.DIGEST_ALGORITHM_SHA1)) {
+            if (hasDigests(manifest, digestAlgorithm))
+                return digestAlgorithm;
+        }
+        return preferred;
+    }
+
+    private static boolean hasDigests(final @NonNull Manifest manifest, final @NonNull String digestAlgorithm) {
+        final String digestAttribute = digestAlgorithm + "-Digest";
+        for (final Attributes attributes : manifest.getEntries().values()) {
+            if (attributes.getValue(digestAttribute) != null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The base64 "[algorithm]-Digest" of every entry listed in the manifest, by entry name
+     */
+    @NonNull
+    private static Map<String, String> manifestDigests(final @Nullable Manifest manifest, final @NonNull String digestAlgorithm) {
+        final Map<String, String> digests = new HashMap<>();
+        if (manifest == null)
+            return digests;
+
+        final String digestAttribute = digestAlgorithm + "-Digest";
+        for (final Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+            final String digest = entry.getValue().getValue(digestAttribute);
+            if (digest != null)
+                digests.put(entry.getKey(), digest);
+        }
+        return digests;
+    }
+
+    @NonNull
+    private static MessageDigest messageDigest(final @NonNull String digestAlgorithm) {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    @NonNull
+    private static byte[] digestEntry(final @NonNull ZipEntryReader entryReader, final @NonNull ZipCentralDirectory.Entry entry, final @NonNull String digestAlgorithm, final @NonNull byte[] buffer) throws IOException {
+        final MessageDigest digest = messageDigest(digestAlgorithm);
+        entryReader.open(entry);
+        int read;
+        while ((read = entryReader.read(buffer)) != -1)
+            digest.update(buffer, 0, read);
+        return digest.digest();
+    }
+
+    @NonNull
+    private SignerConfig signerConfig(final @NonNull File cacheDir) {
+        if (new File(this.signerConfig.keystorePath).isAbsolute())
+            return this.signerConfig;
+
+        return this.signerConfig
+                .withPath(new File(cacheDir, this.signerConfig.keystorePath).getAbsolutePath());
+    }
+
     private void DexClasses_disassemble(final @NonNull File dexFile, final @NonNull File outputDir) throws IOException {
         DexFile dex = new DexBackedDexFile(Opcodes.forApi(this.apiLevel), Files.readAllBytes(dexFile.toPath()));
         BaksmaliOptions opts = new BaksmaliOptions();
@@ -212,9 +881,7 @@ public final class SinumPatcher {
             final File ue4GameActivityPath = Paths.get(smaliDir.getAbsolutePath(), "com", "epicgames", "ue4", "GameActivity.smali").toFile();
             final String ue4GameActivity = FileUtils.readFileToString(ue4GameActivityPath, StandardCharsets.UTF_8);
 
-            // Define the pattern for onCreate and registers line
-            final Pattern pattern = Pattern.compile("(\\.method public onCreate\\(Landroid/os/Bundle;\\)V\\s*\\.registers \\d+)");
-            final Matcher matcher = pattern.matcher(ue4GameActivity);
+            final Matcher matcher = ON_CREATE_PATTERN.matcher(ue4GameActivity);
 
             // Define the string to append after .registers
             final String toAppend = "\n    const-string v0, \"sinum\"\n    invoke-static {v0}, Ljava/lang/System;->loadLibrary(Ljava/lang/String;)V";
@@ -252,19 +919,192 @@ public final class SinumPatcher {
         Smali.assemble(opts, smaliDir.getAbsolutePath());
     }
 
+    /**
+     * Same patch as {@link #DexClasses_injectSinum(File, String, String, String)},
+     * done with dexlib2 on the in-memory dex instead of on smali files.
+     */
+    private void DexClasses_rewrite(final @NonNull byte[] dexBytes, final @NonNull File outputDex, final @NonNull String protocol, final @NonNull String host, final @NonNull String port) throws IOException {
+        final Opcodes opcodes = Opcodes.forApi(this.apiLevel);
+        final DexBackedDexFile dex = new DexBackedDexFile(opcodes, dexBytes);
+        final DexPool dexPool = new DexPool(opcodes);
+
+        boolean injected = false;
+        for (final DexBackedClassDef classDef : dex.getClasses()) {
+            if (!classDef.getType().equals(UE4_GAME_ACTIVITY_CLASS)) {
+                dexPool.internClass(classDef);
+                continue;
+            }
+
+            final List<Method> methods = new ArrayList<>();
+            for (final Method method : classDef.getMethods()) {
+                if (!injected && isInjectableOnCreate(method)) {
+                    methods.add(injectNativeSoLoader(method));
+                    injected = true;
+                } else {
+                    methods.add(method);
+                }
+            }
+
+            dexPool.internClass(new ImmutableClassDef(
+                    classDef.getType(), classDef.getAccessFlags(), classDef.getSuperclass(),
+                    classDef.getInterfaces(), classDef.getSourceFile(), classDef.getAnnotations(),
+                    classDef.getFields(), methods
+            ));
+        }
+
+        if (!injected)
+            throw new FileNotFoundException("Failed to find UE4 game entry point (onCreate) :(");
+
+        final int constantFlags = AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue() | AccessFlags.FINAL.getValue();
+        dexPool.internClass(new ImmutableClassDef(
+                SINUM_CLASS, 0, "Ljava/lang/Object;", null, null, null,
+                Arrays.asList(
+                        new ImmutableField(SINUM_CLASS, "PROTOCOL", "Ljava/lang/String;", constantFlags, new ImmutableStringEncodedValue(stripLineBreaks(protocol)), null, null),
+                        new ImmutableField(SINUM_CLASS, "HOST", "Ljava/lang/String;", constantFlags, new ImmutableStringEncodedValue(stripLineBreaks(host)), null, null),
+                        new ImmutableField(SINUM_CLASS, "PORT", "Ljava/lang/String;", constantFlags, new ImmutableStringEncodedValue(stripLineBreaks(port)), null, null)
+                ),
+                null
+        ));
+
+        dexPool.writeTo(new FileDataStore(outputDex));
+    }
+
+    /**
+     * Prepends System.loadLibrary("sinum") to the given method, clobbering v0
+     * exactly like the smali injection does.
+     */
     @NonNull
-    private static String escapeSmaliConstant(final @NonNull String constant) {
+    private static Method injectNativeSoLoader(final @NonNull Method onCreate) {
+        final MutableMethodImplementation impl = new MutableMethodImplementation(Objects.requireNonNull(onCreate.getImplementation()));
+        impl.addInstruction(0, new BuilderInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("sinum")));
+        impl.addInstruction(1, new BuilderInstruction35c(Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0, new ImmutableMethodReference(
+                "Ljava/lang/System;", "loadLibrary", Collections.singletonList("Ljava/lang/String;"), "V"
+        )));
+
+        return new ImmutableMethod(
+                onCreate.getDefiningClass(), onCreate.getName(), onCreate.getParameters(), onCreate.getReturnType(),
+                onCreate.getAccessFlags(), onCreate.getAnnotations(), onCreate.getHiddenApiRestrictions(), impl
+        );
+    }
+
+    private static void addPatchedDex(final @NonNull SignedJar outputApkZ, final @NonNull String name, final @NonNull File patchedDex, final boolean compression, final @NonNull byte[] buffer) throws IOException {
+        long crc = 0;
+        if (!compression) {
+            try (InputStream is = Files.newInputStream(patchedDex.toPath())) {
+                crc = SignedJar.computeCRC32(is, buffer);
+            }
+        }
+        try (InputStream is = Files.newInputStream(patchedDex.toPath())) {
+            outputApkZ.addFileContents(name, is, patchedDex.length(), crc, compression, buffer);
+        }
+    }
+
+    /**
+     * Appends the Sinum native libraries.
+     */
+    private static void addSinumLibraries(final @NonNull SignedJar outputApkZ, final @NonNull List<String> archs, final @NonNull byte[] buffer) throws IOException {
+        final ClassLoader cl = SinumPatcher.class.getClassLoader();
+
+        for (final String arch : archs) {
+            final String vpath = "sinum/" + arch + "/libsinum.so";
+            try (final InputStream soStream = cl.getResourceAsStream(vpath)) {
+                if (soStream == null)
+                    throw new IOException("Couldn't load: " + vpath);
+
+                outputApkZ.addFileContents("lib/" + arch + "/libsinum.so", soStream, -1, -1, true, buffer);
+            }
+        }
+    }
+
+    /**
+     * The value a Sinum.PROTOCOL / HOST / PORT constant ends up with,
+     * whichever way the dex is patched: the argument minus its line breaks,
+     * everything else verbatim.
+     */
+    @NonNull
+    private static String stripLineBreaks(final @NonNull String constant) {
         return constant
                 .replace("\n", "")
-                .replace("\r", "")
+                .replace("\r", "");
+    }
+
+    /**
+     * Smali literal of {@link #stripLineBreaks(String)}: backslashes and
+     * quotes are escaped so smali doesn't interpret them.
+     */
+    @NonNull
+    private static String escapeSmaliConstant(final @NonNull String constant) {
+        return stripLineBreaks(constant)
+                .replace("\\", "\\\\")
                 .replace("\"", "\\\"");
     }
 
+    /**
+     * Forwards the progress of the streamed entries to a {@link PatchListener}.
+     */
+    private static class ProgressTracker {
+        private final @Nullable PatchListener listener;
+        private final long totalBytes;
+        private long processedBytes = 0;
+
+        public ProgressTracker(final @Nullable PatchListener listener, final long totalBytes) {
+            this.listener = listener;
+            this.totalBytes = totalBytes;
+        }
+
+        public void checkCancelled() throws InterruptedIOException {
+            if (this.listener != null && this.listener.isCancelled())
+                throw new InterruptedIOException("Patch cancelled");
+        }
+
+        public void advance(final long bytes) throws InterruptedIOException {
+            if (this.listener == null)
+                return;
+
+            this.processedBytes += bytes;
+            this.listener.onProgress(this.processedBytes, this.totalBytes);
+            checkCancelled();
+        }
+
+        @NonNull
+        public InputStream track(final @NonNull InputStream is) {
+            if (this.listener == null)
+                return is;
+
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b != -1)
+                        advance(1);
+                    return b;
+                }
+
+                @Override
+                public int read(final @NonNull byte[] b, final int off, final int len) throws IOException {
+                    final int read = super.read(b, off, len);
+                    if (read > 0)
+                        advance(read);
+                    return read;
+                }
+            };
+        }
+    }
+
     private static class ArchFilter {
         public boolean arm64v8a = false;
         public boolean armeabiv7a = false;
         public boolean x86_64 = false;
 
+        /**
+         * Records the arch of the given apk entry if it is the UE4 native library.
+         */
+        public void accept(final @NonNull String entryName) {
+            if (entryName.equals("lib/arm64-v8a/libUE4.so")) this.arm64v8a = true;
+            if (entryName.equals("lib/armeabi-v7a/libUE4.so")) this.armeabiv7a = true;
+            if (entryName.equals("lib/x86_64/libUE4.so")) this.x86_64 = true;
+        }
+
         public List<String> toList() {
             final List<String> archs = new ArrayList<>();
             if (this.arm64v8a) archs.add("arm64-v8a");
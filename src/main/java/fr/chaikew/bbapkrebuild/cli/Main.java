@@ -4,9 +4,20 @@ import fr.chaikew.bbapkrebuild.SinumPatcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class Main {
     public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2 && args[0].equals("--analyze")) {
+            System.out.println("Analysis of " + args[1] + ": ");
+            System.out.println(new SinumPatcher().analyze(new File(args[1])));
+            return;
+        }
+
+        boolean inPlace = args.length == 7 && args[0].equals("--in-place");
+        if (inPlace)
+            args = Arrays.copyOfRange(args, 1, args.length);
+
         if (args.length != 6) {
             System.out.println("Invalid command line: expected 6 arguments, saw " + args.length + " arguments!");
             System.out.println("Command line format: ");
@@ -16,6 +27,10 @@ public class Main {
             System.out.println("    4. url protocol");
             System.out.println("    5. url host    ");
             System.out.println("    6. url port    ");
+            System.out.println("or, to only check whether an apk can be patched: ");
+            System.out.println("    --analyze input.apk");
+            System.out.println("or, to append the changes to a copy of the input apk instead of rewriting it: ");
+            System.out.println("    --in-place followed by the 6 arguments");
             return;
         }
 
@@ -35,6 +50,9 @@ public class Main {
         System.out.println("Waiting 3s for you to review them before continuing...");
         Thread.sleep(3000);
 
-        new SinumPatcher().sinumPatch(new File(input), new File(output), new File(cache), protocol, host, port);
+        if (inPlace)
+            new SinumPatcher().sinumPatchInPlace(new File(input), new File(output), new File(cache), protocol, host, port);
+        else
+            new SinumPatcher().sinumPatch(new File(input), new File(output), new File(cache), protocol, host, port);
     }
 }
\ No newline at end of file
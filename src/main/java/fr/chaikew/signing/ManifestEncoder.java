@@ -0,0 +1,156 @@
+package fr.chaikew.signing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Incremental encoder of manifest and signature file sections. Attributes are
+ * encoded straight into a reusable byte buffer with the 72 bytes line wrapping
+ * of the JAR specification, so a section can be hashed and appended without
+ * round-tripping through {@link java.util.jar.Manifest}.
+ * @see <a
+ *      href="http://docs.oracle.com/javase/7/docs/technotes/guides/jar/jar.html#Manifest_Specification">Manifest
+ *      specification</a>
+ */
+final class ManifestEncoder {
+    private static final int LINE_MAX_LEN = 72;
+
+    private byte[] mBuf;
+    private int mLen;
+    private int mColumn;
+
+    /**
+     * Constructor.
+     * @param initialCapacity
+     *            initial size of the buffer, it grows as needed
+     */
+    ManifestEncoder(int initialCapacity) {
+        mBuf = new byte[Math.max(initialCapacity, LINE_MAX_LEN)];
+    }
+
+    /** Discards the encoded bytes, keeping the buffer for reuse. */
+    void reset() {
+        mLen = 0;
+        mColumn = 0;
+    }
+
+    /** Returns the number of encoded bytes. */
+    int length() {
+        return mLen;
+    }
+
+    /**
+     * Encodes a {@code name: value} line.
+     * @param name
+     *            name of the attribute
+     * @param value
+     *            value of the attribute
+     */
+    void addAttribute(String name, String value) {
+        putString(name);
+        putByte((byte) ':');
+        putByte((byte) ' ');
+        putString(value);
+        newLine();
+    }
+
+    /**
+     * Encodes a {@code name: value} line whose value is already ASCII
+     * encoded (e.g. base64 digests).
+     */
+    void addAttribute(String name, byte[] asciiValue) {
+        putString(name);
+        putByte((byte) ':');
+        putByte((byte) ' ');
+        for (byte b : asciiValue)
+            putByte(b);
+        newLine();
+    }
+
+    /** Terminates the current section with an empty line. */
+    void endSection() {
+        newLine();
+    }
+
+    /** Appends everything encoded by {@code other} to this encoder. */
+    void append(ManifestEncoder other) {
+        ensureCapacity(other.mLen);
+        System.arraycopy(other.mBuf, 0, mBuf, mLen, other.mLen);
+        mLen += other.mLen;
+        mColumn = 0;
+    }
+
+    /** Feeds the encoded bytes to {@code digest}. */
+    void update(MessageDigest digest) {
+        digest.update(mBuf, 0, mLen);
+    }
+
+    /** Writes the encoded bytes to {@code out}. */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(mBuf, 0, mLen);
+    }
+
+    /** Returns a copy of the encoded bytes. */
+    byte[] toByteArray() {
+        return Arrays.copyOf(mBuf, mLen);
+    }
+
+    /** UTF-8 encodes {@code s} without allocating an intermediate array. */
+    private void putString(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                putByte((byte) c);
+            } else if (c < 0x800) {
+                putByte((byte) (0xC0 | (c >> 6)));
+                putByte((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                putByte((byte) (0xF0 | (cp >> 18)));
+                putByte((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                putByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                putByte((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                putByte((byte) '?'); // unpaired surrogate, same as String#getBytes
+            } else {
+                putByte((byte) (0xE0 | (c >> 12)));
+                putByte((byte) (0x80 | ((c >> 6) & 0x3F)));
+                putByte((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Writes one byte of an attribute line, breaking the line with a
+     * continuation space once it reached {@value #LINE_MAX_LEN} bytes (same
+     * wrapping as {@link java.util.jar.Manifest#write(OutputStream)}).
+     */
+    private void putByte(byte b) {
+        if (mColumn == LINE_MAX_LEN) {
+            ensureCapacity(4);
+            mBuf[mLen++] = '\r';
+            mBuf[mLen++] = '\n';
+            mBuf[mLen++] = ' ';
+            mColumn = 1;
+        } else {
+            ensureCapacity(1);
+        }
+        mBuf[mLen++] = b;
+        mColumn++;
+    }
+
+    private void newLine() {
+        ensureCapacity(2);
+        mBuf[mLen++] = '\r';
+        mBuf[mLen++] = '\n';
+        mColumn = 0;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLen + extra > mBuf.length)
+            mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length << 1, mLen + extra));
+    }
+}
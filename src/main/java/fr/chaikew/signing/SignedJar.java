@@ -3,6 +3,8 @@ package fr.chaikew.signing;
 
 import org.spongycastle.asn1.ASN1InputStream;
 import org.spongycastle.asn1.DEROutputStream;
+import org.spongycastle.asn1.x509.AlgorithmIdentifier;
+import org.spongycastle.asn1.x9.X9ObjectIdentifiers;
 import org.spongycastle.cert.jcajce.JcaCertStore;
 import org.spongycastle.cms.CMSProcessableByteArray;
 import org.spongycastle.cms.CMSSignedData;
@@ -13,35 +15,40 @@ import org.spongycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.spongycastle.operator.ContentSigner;
 import org.spongycastle.operator.DigestCalculatorProvider;
+import org.spongycastle.operator.RuntimeOperatorException;
 import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.spongycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.spongycastle.util.Store;
 import org.spongycastle.util.encoders.Base64;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.GregorianCalendar;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
 import java.util.zip.CRC32;
 
 /**
- * Generator of signed Jars. It stores some data in memory therefore it is not
- * suited for creation of large files. TODO: add streaming interface for file
- * contents TODO: better error handling in #close() method
+ * Generator of signed Jars. The manifest and signature file sections are
+ * encoded as the entries are added, so only their encoded bytes are kept in
+ * memory. TODO: better error handling in #close() method
  * @author Michal Rydlo, Maciek Muszkowski
  * @see <a
  *      href="http://docs.oracle.com/javase/7/docs/technotes/guides/jar/jar.html#Signed_JAR_File">JAR
@@ -50,31 +57,64 @@ import java.util.zip.CRC32;
 public class SignedJar implements AutoCloseable {
     private static final int MANIFEST_ATTR_MAX_LEN = 70;
 
-    private static final String DIG_ALG = "SHA1";
+    /** Alignment of stored entries, same as {@code zipalign 4}. */
+    private static final int ZIP_ALIGNMENT = 4;
+    /** Alignment of stored native libraries, same as {@code zipalign -p}. */
+    private static final int ZIP_SO_ALIGNMENT = 4096;
+    /** Extra field id used by Android's zipalign for alignment padding. */
+    private static final int ALIGNMENT_EXTRA_ID = 0xD935;
+    private static final int JAR_MAGIC_EXTRA_LEN = 4;
+
+    /** Default entry digest, accepted by every Android version. */
+    static final String DEFAULT_DIG_ALG = "SHA1";
     //private static final String SIG_ALG = "SHA1withRSA";
-    private static final String SIG_ALG = "SHA256WithRSA";
+    private static final String SIG_ALG_RSA = "SHA256WithRSA";
+    private static final String SIG_ALG_EC = "SHA256withECDSA";
+    /**
+     * RFC 6979 deterministic ECDSA, what EC signature files are actually signed
+     * with: plain ECDSA signatures are randomized, which would make the output
+     * differ between identical runs. Verifies as {@link #SIG_ALG_EC}.
+     */
+    private static final String SIG_ALG_EC_DETERMINISTIC = "SHA256withECDDSA";
 
-    // TODO:   CREATED BY: 1.0 (Android)
-    private static final String CREATED_BY = System.getProperty("java.version")
-            + " (" + System.getProperty("java.vendor") + ")";
+    // fixed rather than the running JVM, so the output doesn't depend on where it was built
+    private static final String CREATED_BY = "1.0 (Android)";
+    /**
+     * Timestamp of every entry (2008-01-01 00:00, like the Android build
+     * tools) so identical inputs produce identical JARs. ZIP stores local
+     * time, hence the default time zone.
+     */
+    private static final long ENTRY_TIME = new GregorianCalendar(2008, Calendar.JANUARY, 1).getTimeInMillis();
     private static final String SIG_FN = "META-INF/INTERMED.SF";
-    private static final String SIG_RSA_FN = "META-INF/INTERMED.RSA";
+    private static final String SIG_BLOCK_FN = "META-INF/INTERMED.";
 
     private final Collection<X509Certificate> mChain;
     private final X509Certificate mCert;
     private final PrivateKey mSignKey;
     private final MessageDigest mHashFunction;
+    /** Digest algorithm, also the prefix of the digest attributes (e.g. SHA-256-Digest). */
+    private final String mDigestAlgorithm;
+    private final String mSignatureAlgorithm;
 
     private final Map<String, String> mManifestAttributes;
-    private final Map<String, String> mFileDigests;
-    private final Map<String, String> mSectionDigests;
-    private String mManifestHash;
-    private String mManifestMainHash;
-
+    /** Per-entry sections of the manifest, in insertion order. */
+    private final ManifestEncoder mManifestSections;
+    /** Per-entry sections of the signature file, in insertion order. */
+    private final ManifestEncoder mSigSections;
+    /** Scratch encoder of the section currently being hashed. */
+    private final ManifestEncoder mSection;
+    private final byte[] mDigest;
+    /** Base64 encoded digests of the manifest, for the signature file. */
+    private byte[] mManifestHash;
+    private byte[] mManifestMainHash;
+
+    private final CountingOutputStream mOut;
     private final JarOutputStream mJarOut;
+    private boolean mZipAligned;
+    private boolean mFirstEntry = true;
 
     /**
-     * Constructor.
+     * Constructor, digesting the entries with {@value #DEFAULT_DIG_ALG}.
      * @param out
      *            the output stream to write JAR data to
      * @param chain
@@ -92,14 +132,46 @@ public class SignedJar implements AutoCloseable {
                      Collection<X509Certificate> chain,
                      X509Certificate cert, PrivateKey signKey)
             throws NoSuchAlgorithmException, IOException {
-        mJarOut = new JarOutputStream(out);
+        this(out, chain, cert, signKey, DEFAULT_DIG_ALG);
+    }
+
+    /**
+     * Constructor.
+     * @param out
+     *            the output stream to write JAR data to
+     * @param chain
+     *            certification chain
+     * @param cert
+     *            certificate included in signature
+     * @param signKey
+     *            key is used to sign the JAR, RSA or EC, it also selects the
+     *            signature block name (.RSA or .EC)
+     * @param digestAlgorithm
+     *            digest of the entries and manifest sections, "SHA1" or
+     *            "SHA-256" (the latter requires Android 4.3+)
+     * @throws NoSuchAlgorithmException
+     *             on no such hashing algorithm
+     * @throws IOException
+     *             on JAR output stream creation failed
+     */
+    public SignedJar(OutputStream out,
+                     Collection<X509Certificate> chain,
+                     X509Certificate cert, PrivateKey signKey,
+                     String digestAlgorithm)
+            throws NoSuchAlgorithmException, IOException {
+        mOut = new CountingOutputStream(out);
+        mJarOut = new JarOutputStream(mOut);
         mChain = chain;
         mCert = cert;
         mSignKey = signKey;
         mManifestAttributes = new LinkedHashMap<>();
-        mFileDigests = new LinkedHashMap<>();
-        mSectionDigests = new LinkedHashMap<>();
-        mHashFunction = MessageDigest.getInstance(DIG_ALG);
+        mManifestSections = new ManifestEncoder(8192);
+        mSigSections = new ManifestEncoder(8192);
+        mSection = new ManifestEncoder(256);
+        mHashFunction = MessageDigest.getInstance(digestAlgorithm);
+        mDigestAlgorithm = digestAlgorithm;
+        mSignatureAlgorithm = signatureAlgorithm(signKey.getAlgorithm());
+        mDigest = new byte[mHashFunction.getDigestLength()];
     }
 
     /**
@@ -119,6 +191,16 @@ public class SignedJar implements AutoCloseable {
     }
 
 
+    /**
+     * Pads stored entries so their data is aligned the way {@code zipalign}
+     * would do it, which saves an alignment pass over the finished file.
+     * @param zipAligned
+     *            whether stored entries added from now on are aligned
+     */
+    public void setZipAligned(boolean zipAligned) {
+        mZipAligned = zipAligned;
+    }
+
     public void addFileContents(String filename, byte[] contents, boolean flush)
             throws IOException {
         addFileContents(filename, contents, true, flush);
@@ -142,7 +224,7 @@ public class SignedJar implements AutoCloseable {
      */
     public void addFileContents(String filename, byte[] contents, boolean compression, boolean flush)
             throws IOException {
-        if (filename.equals("META-INF/MANIFEST.MF") || (filename.startsWith("META-INF") && (filename.endsWith(".SF") || filename.endsWith(".RSA"))))
+        if (isSignatureFile(filename))
             return;
 
         JarEntry entry = new JarEntry(filename);
@@ -150,17 +232,84 @@ public class SignedJar implements AutoCloseable {
             entry.setMethod(JarEntry.STORED);
             entry.setSize(contents.length);
             entry.setCompressedSize(contents.length);
-            entry.setCrc(computeCRC32(contents)); // CRC is required for STORED entries
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            entry.setCrc(crc.getValue()); // CRC is required for STORED entries
         }
-        mJarOut.putNextEntry(entry);
+        putNextEntry(entry);
         mJarOut.write(contents);
         mJarOut.closeEntry();
 
         if (flush)
             mJarOut.flush(); // used to free the ram
 
-        byte[] hashCode = mHashFunction.digest(contents);
-        mFileDigests.put(filename, toBase64String(hashCode));
+        mHashFunction.update(contents);
+        addEntrySections(filename, digest());
+    }
+
+    /**
+     * Adds a file to the JAR, streaming its contents through {@code buffer}
+     * so the whole file never has to be held in memory.
+     * @param filename
+     *            name of the file to add (use forward slash as a path
+     *            separator)
+     * @param contents
+     *            contents of the file, read until its end but not closed
+     * @param size
+     *            uncompressed size of the file, only used for stored entries
+     * @param crc
+     *            CRC-32 of the file, only used for stored entries
+     * @param compression
+     *            enables compression for the entry
+     * @param buffer
+     *            copy buffer, reused by the caller across entries
+     * @throws java.io.IOException
+     * @throws NullPointerException
+     *             if any of the arguments is {@code null}
+     */
+    public void addFileContents(String filename, InputStream contents, long size, long crc,
+                                boolean compression, byte[] buffer)
+            throws IOException {
+        if (isSignatureFile(filename))
+            return;
+
+        JarEntry entry = new JarEntry(filename);
+        if (!compression) {
+            entry.setMethod(JarEntry.STORED);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc); // CRC is required for STORED entries
+        }
+        putNextEntry(entry);
+        int read;
+        while ((read = contents.read(buffer)) != -1) {
+            mJarOut.write(buffer, 0, read);
+            mHashFunction.update(buffer, 0, read);
+        }
+        mJarOut.closeEntry();
+
+        addEntrySections(filename, digest());
+    }
+
+    /**
+     * Lists a file in the manifest without writing it, for JARs whose entries
+     * are partly written by other means (e.g. entries kept in place when
+     * appending to an existing archive).
+     * @param filename
+     *            name of the file (use forward slash as a path separator)
+     * @param digest
+     *            digest of the file contents, computed with the digest
+     *            algorithm this JAR was created with
+     * @throws NullPointerException
+     *             if any of the arguments is {@code null}
+     */
+    public void addFileDigest(String filename, byte[] digest) {
+        if (isSignatureFile(filename))
+            return;
+        if (digest.length != mDigest.length)
+            throw new IllegalArgumentException("digest length doesn't match " + mDigestAlgorithm);
+
+        addEntrySections(filename, digest);
     }
 
     /**
@@ -203,7 +352,7 @@ public class SignedJar implements AutoCloseable {
         Security.addProvider(new BouncyCastleProvider());
 
         Store<?> certStore = new JcaCertStore(mChain);
-        ContentSigner signer = new JcaContentSignerBuilder(SIG_ALG).build(mSignKey);
+        ContentSigner signer = createContentSigner();
         CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
         DigestCalculatorProvider dcp = new JcaDigestCalculatorProviderBuilder().build();
         // jarsigner doesn't include attribute table
@@ -216,6 +365,19 @@ public class SignedJar implements AutoCloseable {
         return generator;
     }
 
+    /**
+     * Creates the signer of the signature file, deterministic for EC keys
+     * (see {@link #SIG_ALG_EC_DETERMINISTIC}).
+     */
+    private ContentSigner createContentSigner() throws Exception {
+        if (!mSignatureAlgorithm.equals(SIG_ALG_EC))
+            return new JcaContentSignerBuilder(mSignatureAlgorithm).build(mSignKey);
+
+        Signature signature = Signature.getInstance(SIG_ALG_EC_DETERMINISTIC);
+        signature.initSign(mSignKey);
+        return new SignatureContentSigner(signature, new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256));
+    }
+
     /** Returns the CMS signed data. */
     private byte[] signSigFile(byte[] sigContents) throws Exception {
         CMSSignedDataGenerator gen = createSignedDataGenerator();
@@ -234,13 +396,13 @@ public class SignedJar implements AutoCloseable {
     }
 
     /**
-     * Signs the .SIG file and writes the signature (.RSA file) to the JAR.
+     * Signs the .SIG file and writes the signature (.RSA or .EC file) to the JAR.
      * @throws java.io.IOException
      * @throws RuntimeException
      *             if the signing failed
      */
     private void writeSignature(byte[] sigFile) throws IOException {
-        mJarOut.putNextEntry(new JarEntry(SIG_RSA_FN));
+        putNextEntry(new JarEntry(SIG_BLOCK_FN + signatureBlockExtension(mSignatureAlgorithm)));
         try {
             byte[] signature = signSigFile(sigFile);
             mJarOut.write(signature);
@@ -258,66 +420,45 @@ public class SignedJar implements AutoCloseable {
      * @return the contents of the file as bytes
      */
     private byte[] writeSigFile() throws IOException {
-        mJarOut.putNextEntry(new JarEntry(SIG_FN));
-        Manifest man = new Manifest();
+        putNextEntry(new JarEntry(SIG_FN));
+        ManifestEncoder sig = new ManifestEncoder(256 + mSigSections.length());
         // main section
-        Attributes mainAttributes = man.getMainAttributes();
-        mainAttributes.put(Attributes.Name.SIGNATURE_VERSION, "1.0");
-        mainAttributes.put(new Attributes.Name("Created-By"), CREATED_BY);
-        mainAttributes.put(new Attributes.Name(
-                        DIG_ALG + "-Digest-Manifest"),
-                mManifestHash);
-        mainAttributes.put(new Attributes.Name(
-                        DIG_ALG + "-Digest-Manifest-Main-Attributes"),
-                mManifestMainHash);
+        sig.addAttribute("Signature-Version", "1.0");
+        sig.addAttribute("Created-By", CREATED_BY);
+        sig.addAttribute(mDigestAlgorithm + "-Digest-Manifest", mManifestHash);
+        sig.addAttribute(mDigestAlgorithm + "-Digest-Manifest-Main-Attributes", mManifestMainHash);
+        sig.endSection();
 
         // individual files sections
-        Attributes.Name digestAttr = new Attributes.Name(
-                DIG_ALG + "-Digest");
-        for (Map.Entry<String, String> entry : mSectionDigests.entrySet()) {
-            Attributes attributes = new Attributes();
-            man.getEntries().put(entry.getKey(), attributes);
-            attributes.put(digestAttr, entry.getValue());
-        }
+        sig.append(mSigSections);
 
-        man.write(mJarOut);
+        sig.writeTo(mJarOut);
         mJarOut.closeEntry();
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        man.write(baos);
-        return baos.toByteArray();
-    }
-
-    /**
-     * Helper for {@link #writeManifest()} that creates the digest of one entry.
-     */
-    private String hashEntrySection(String name, Attributes attributes)
-            throws IOException {
-        // crate empty manifest
-        Manifest manifest = new Manifest();
-        manifest.getMainAttributes().put(
-                Attributes.Name.MANIFEST_VERSION, "1.0");
-        ByteArrayOutputStream o = new ByteArrayOutputStream();
-        manifest.write(o);
-        int emptyLen = o.toByteArray().length;
-
-        // get hash of entry without manifest header
-        manifest.getEntries().put(name, attributes);
-        o.reset();
-        manifest.write(o);
-        byte[] ob = o.toByteArray();
-        ob = Arrays.copyOfRange(ob, emptyLen, ob.length);
-        return toBase64String(mHashFunction.digest(ob));
+        return sig.toByteArray();
     }
 
     /**
-     * Helper for {@link #writeManifest()} that creates the digest of the main
-     * section.
+     * Encodes the manifest section of one entry and the signature file
+     * section holding the digest of that manifest section.
+     * @param name
+     *            name of the entry
+     * @param digest
+     *            digest of the entry contents
      */
-    private String hashMainSection(Attributes attributes) throws IOException {
-        Manifest manifest = new Manifest();
-        manifest.getMainAttributes().putAll(attributes);
-        return toBase64String(getManifestHash(manifest));
+    private void addEntrySections(String name, byte[] digest) {
+        final String digestAttr = mDigestAlgorithm + "-Digest";
+
+        mSection.reset();
+        mSection.addAttribute("Name", name);
+        mSection.addAttribute(digestAttr, Base64.encode(digest));
+        mSection.endSection();
+        mManifestSections.append(mSection);
+
+        mSection.update(mHashFunction);
+        mSigSections.addAttribute("Name", name);
+        mSigSections.addAttribute(digestAttr, Base64.encode(digest()));
+        mSigSections.endSection();
     }
 
     /**
@@ -326,65 +467,195 @@ public class SignedJar implements AutoCloseable {
      * @throws java.io.IOException
      */
     private void writeManifest() throws IOException {
-        mJarOut.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-        Manifest man = new Manifest();
+        putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
 
         // main section
-        Attributes mainAttributes = man.getMainAttributes();
-        mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
-        mainAttributes.put(new Attributes.Name("Created-By"), CREATED_BY);
-
-        for (Map.Entry<String, String> entry : mManifestAttributes.entrySet()) {
-            mainAttributes.put(new Attributes.Name(entry.getKey()),
-                    entry.getValue());
+        Map<String, String> mainAttributes = new LinkedHashMap<>();
+        mainAttributes.put("Manifest-Version", "1.0");
+        mainAttributes.put("Created-By", CREATED_BY);
+        mainAttributes.putAll(mManifestAttributes);
+
+        ManifestEncoder main = new ManifestEncoder(256);
+        for (Map.Entry<String, String> entry : mainAttributes.entrySet()) {
+            main.addAttribute(entry.getKey(), entry.getValue());
         }
+        main.endSection();
+
+        main.update(mHashFunction);
+        mManifestMainHash = Base64.encode(digest());
 
         // individual files sections
-        Attributes.Name digestAttr = new Attributes.Name(
-                DIG_ALG + "-Digest");
-        for (Map.Entry<String, String> entry : mFileDigests.entrySet()) {
-            Attributes attributes = new Attributes();
-            man.getEntries().put(entry.getKey(), attributes);
-            attributes.put(digestAttr, entry.getValue());
-            mSectionDigests.put(entry.getKey(),
-                    hashEntrySection(entry.getKey(), attributes));
-        }
-        man.write(mJarOut);
+        main.writeTo(mJarOut);
+        mManifestSections.writeTo(mJarOut);
         mJarOut.closeEntry();
 
-        mManifestHash = toBase64String(getManifestHash(man));
-        mManifestMainHash = hashMainSection(man.getMainAttributes());
+        main.update(mHashFunction);
+        mManifestSections.update(mHashFunction);
+        mManifestHash = Base64.encode(digest());
     }
 
     /**
-     * Returns the manifest hash.
-     * @param manifest
-     *            manifest
-     * @return hash
-     * @throws IOException
-     *             on creating temporary byte buffer error
+     * Completes the pending hash computation into the reusable digest buffer.
+     * @return the digest buffer, only valid until the next call
      */
-    private byte[] getManifestHash(Manifest manifest) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        manifest.write(baos);
-        return mHashFunction.digest(baos.toByteArray());
+    private byte[] digest() {
+        try {
+            mHashFunction.digest(mDigest, 0, mDigest.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e); // buffer is sized by getDigestLength()
+        }
+        return mDigest;
+    }
+
+    /**
+     * Starts a new ZIP entry with the fixed timestamp, padding its extra field
+     * first when it is stored and alignment is enabled.
+     */
+    private void putNextEntry(JarEntry entry) throws IOException {
+        if (mZipAligned && entry.getMethod() == JarEntry.STORED) {
+            int alignment = entry.getName().endsWith(".so") ? ZIP_SO_ALIGNMENT : ZIP_ALIGNMENT;
+            // ZipOutputStream writes straight through, the local header starts at the current count
+            long dataOffset = mOut.getCount() + 30
+                    + entry.getName().getBytes(StandardCharsets.UTF_8).length
+                    + (mFirstEntry ? JAR_MAGIC_EXTRA_LEN : 0);
+            int padding = (int) ((alignment - dataOffset % alignment) % alignment);
+            while (padding != 0 && padding < 6) // room for the extra field header and the alignment value
+                padding += alignment;
+            if (padding != 0) {
+                byte[] extra = new byte[padding];
+                extra[0] = (byte) ALIGNMENT_EXTRA_ID;
+                extra[1] = (byte) (ALIGNMENT_EXTRA_ID >> 8);
+                extra[2] = (byte) (padding - 4);
+                extra[3] = (byte) ((padding - 4) >> 8);
+                extra[4] = (byte) alignment;
+                extra[5] = (byte) (alignment >> 8);
+                entry.setExtra(extra);
+            }
+        }
+        entry.setTime(ENTRY_TIME);
+        mFirstEntry = false;
+        mJarOut.putNextEntry(entry);
+    }
+
+    /**
+     * Returns whether an entry is part of a JAR signature (manifest, signature
+     * file or signature block). Such entries are never copied over: they are
+     * regenerated when the JAR is signed.
+     * @param filename
+     *            name of the entry
+     */
+    public static boolean isSignatureFile(String filename) {
+        return filename.equals(JarFile.MANIFEST_NAME) || (filename.startsWith("META-INF/") && (filename.endsWith(".SF")
+                || filename.endsWith(".RSA") || filename.endsWith(".EC") || filename.endsWith(".DSA")));
     }
 
     /**
-     * Converts byte array to base64 string. I'm creating this method here
-     * because there were some problems with importing BC Base64.toBase64String
-     * on Android.
-     * @param data
-     *            byte array
-     * @return base64 string
+     * Returns the signature algorithm matching a key algorithm, SHA-256 based
+     * for both RSA and EC keys.
+     * @param keyAlgorithm
+     *            {@link java.security.Key#getAlgorithm()} of the signing key
      */
-    private static String toBase64String(byte[] data) {
-        return new String(Base64.encode(data)); // don't use android.util.Base64 here (somehow it doesn't work)
+    static String signatureAlgorithm(String keyAlgorithm) {
+        switch (keyAlgorithm) {
+            case "RSA":
+                return SIG_ALG_RSA;
+            case "EC":
+            case "ECDSA": // SpongyCastle's own name for EC keys
+                return SIG_ALG_EC;
+            default:
+                throw new IllegalArgumentException("unsupported key algorithm: " + keyAlgorithm);
+        }
+    }
+
+    private static String signatureBlockExtension(String signatureAlgorithm) {
+        return signatureAlgorithm.equals(SIG_ALG_EC) ? "EC" : "RSA";
     }
 
-    private static long computeCRC32(byte[] bytes) {
+    /**
+     * Returns the CRC-32 of a stream's contents, which STORED entries need
+     * before their contents are written.
+     * @param contents
+     *            the stream, read until its end but not closed
+     * @param buffer
+     *            buffer the contents are read through
+     * @throws IOException
+     *             on read errors
+     */
+    public static long computeCRC32(InputStream contents, byte[] buffer) throws IOException {
         CRC32 crc = new CRC32();
-        crc.update(bytes);
+        int read;
+        while ((read = contents.read(buffer)) != -1)
+            crc.update(buffer, 0, read);
         return crc.getValue();
     }
+
+    /** {@link ContentSigner} over an initialized {@link Signature}. */
+    private static final class SignatureContentSigner implements ContentSigner {
+        private final Signature mSignature;
+        private final AlgorithmIdentifier mAlgorithmIdentifier;
+        private final OutputStream mOut = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    mSignature.update(b, off, len);
+                } catch (SignatureException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+
+        SignatureContentSigner(Signature signature, AlgorithmIdentifier algorithmIdentifier) {
+            mSignature = signature;
+            mAlgorithmIdentifier = algorithmIdentifier;
+        }
+
+        @Override
+        public AlgorithmIdentifier getAlgorithmIdentifier() {
+            return mAlgorithmIdentifier;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public byte[] getSignature() {
+            try {
+                return mSignature.sign();
+            } catch (SignatureException e) {
+                throw new RuntimeOperatorException("exception obtaining signature: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /** Keeps track of the offset in the output, for alignment. */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import java.nio.file.Files;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -26,6 +27,15 @@ public class SignerConfig {
         //Security.insertProviderAt(new org.spongycastle.jce.provider.BouncyCastleProvider(), 1);
     }
 
+    public static final String KEY_ALGORITHM_RSA = "RSA";
+    /** EC P-256 keys, much faster to generate and sign with than RSA-2048 (Android 4.3+). */
+    public static final String KEY_ALGORITHM_EC = "EC";
+    public static final String DIGEST_ALGORITHM_SHA1 = SignedJar.DEFAULT_DIG_ALG;
+    /** SHA-256 entry digests (Android 4.3+). */
+    public static final String DIGEST_ALGORITHM_SHA256 = "SHA-256";
+
+    private static final String EC_CURVE = "secp256r1";
+
     public static final SignerConfig DEFAULT_CONFIG = new SignerConfig(
             "000000".toCharArray(),
             "key0",
@@ -33,23 +43,87 @@ public class SignerConfig {
             "keystore.bks"
     );
 
+    /**
+     * EC P-256 key and SHA-256 digests, in its own keystore so it
+     * doesn't pick up an RSA key created by {@link #DEFAULT_CONFIG}.
+     * Signatures are deterministic ECDSA (RFC 6979), so outputs are
+     * as reproducible as with RSA.
+     */
+    public static final SignerConfig EC_CONFIG = DEFAULT_CONFIG
+            .withPath("keystore-ec.bks")
+            .withKeyAlgorithm(KEY_ALGORITHM_EC)
+            .withDigestAlgorithm(DIGEST_ALGORITHM_SHA256);
+
     public final char[] keystorePassword;
     public final String keystoreEntryName;
     public final char[] keystoreEntryPassword;
     public final String keystorePath;
+    /** Algorithm of the key generated when the keystore doesn't exist yet. */
+    public final String keyAlgorithm;
+    public final String digestAlgorithm;
 
     public SignerConfig(char[] keystorePassword, String keystoreEntryName, char[] keystoreEntryPassword, String keystorePath) {
+        this(keystorePassword, keystoreEntryName, keystoreEntryPassword, keystorePath, KEY_ALGORITHM_RSA, DIGEST_ALGORITHM_SHA1);
+    }
+
+    public SignerConfig(char[] keystorePassword, String keystoreEntryName, char[] keystoreEntryPassword, String keystorePath,
+                        String keyAlgorithm, String digestAlgorithm) {
+        if (!keyAlgorithm.equals(KEY_ALGORITHM_RSA) && !keyAlgorithm.equals(KEY_ALGORITHM_EC))
+            throw new IllegalArgumentException("unsupported key algorithm: " + keyAlgorithm);
+        if (!digestAlgorithm.equals(DIGEST_ALGORITHM_SHA1) && !digestAlgorithm.equals(DIGEST_ALGORITHM_SHA256))
+            throw new IllegalArgumentException("unsupported digest algorithm: " + digestAlgorithm);
+
         this.keystorePassword = keystorePassword;
         this.keystoreEntryName = keystoreEntryName;
         this.keystoreEntryPassword = keystoreEntryPassword;
         this.keystorePath = keystorePath;
+        this.keyAlgorithm = keyAlgorithm;
+        this.digestAlgorithm = digestAlgorithm;
     }
 
     public SignerConfig withPath(String newPath) {
-        return new SignerConfig(keystorePassword, keystoreEntryName, keystoreEntryPassword, newPath);
+        return new SignerConfig(keystorePassword, keystoreEntryName, keystoreEntryPassword, newPath, keyAlgorithm, digestAlgorithm);
+    }
+
+    public SignerConfig withKeyAlgorithm(String newKeyAlgorithm) {
+        return new SignerConfig(keystorePassword, keystoreEntryName, keystoreEntryPassword, keystorePath, newKeyAlgorithm, digestAlgorithm);
+    }
+
+    public SignerConfig withDigestAlgorithm(String newDigestAlgorithm) {
+        return new SignerConfig(keystorePassword, keystoreEntryName, keystoreEntryPassword, keystorePath, keyAlgorithm, newDigestAlgorithm);
     }
 
     public SignedJar createSignedJar(OutputStream pZApk) throws SecurityException, IOException {
+        KeyStore.PrivateKeyEntry keyStoreEntry = loadKeystoreEntry();
+
+        try {
+            return new SignedJar(
+                    pZApk,
+                    Arrays.asList((X509Certificate[]) keyStoreEntry.getCertificateChain()),
+                    (X509Certificate) keyStoreEntry.getCertificate(),
+                    keyStoreEntry.getPrivateKey(),
+                    this.digestAlgorithm
+            );
+        } catch (NoSuchAlgorithmException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    /**
+     * SHA-256 of the signing certificate, identifies the key the output is signed with.
+     * The keystore is created if it doesn't exist yet.
+     */
+    public byte[] certificateFingerprint() throws SecurityException, IOException {
+        KeyStore.PrivateKeyEntry keyStoreEntry = loadKeystoreEntry();
+
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(keyStoreEntry.getCertificate().getEncoded());
+        } catch (CertificateException | NoSuchAlgorithmException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    private KeyStore.PrivateKeyEntry loadKeystoreEntry() throws SecurityException, IOException {
         if (!new File(this.keystorePath).exists()) {
             createKeystore();
         }
@@ -60,16 +134,9 @@ public class SignerConfig {
             KeyStore keyStore = KeyStore.getInstance("BKS");
             keyStore.load(keyStoreInputStream, this.keystorePassword);
 
-            KeyStore.PrivateKeyEntry keyStoreEntry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(
+            return (KeyStore.PrivateKeyEntry) keyStore.getEntry(
                     this.keystoreEntryName, new KeyStore.PasswordProtection(this.keystoreEntryPassword)
             );
-
-            return new SignedJar(
-                    pZApk,
-                    Arrays.asList((X509Certificate[]) keyStoreEntry.getCertificateChain()),
-                    (X509Certificate) keyStoreEntry.getCertificate(),
-                    keyStoreEntry.getPrivateKey()
-            );
         } catch (UnrecoverableEntryException | CertificateException | KeyStoreException | NoSuchAlgorithmException e) {
             throw new SecurityException(e);
         }
@@ -81,8 +148,12 @@ public class SignerConfig {
             Security.addProvider(new BouncyCastleProvider());
 
             // Generate a key pair
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-            keyPairGenerator.initialize(2048);
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(this.keyAlgorithm);
+            if (this.keyAlgorithm.equals(KEY_ALGORITHM_EC)) {
+                keyPairGenerator.initialize(new ECGenParameterSpec(EC_CURVE));
+            } else {
+                keyPairGenerator.initialize(2048);
+            }
             KeyPair keyPair = keyPairGenerator.generateKeyPair();
 
             // Create a self-signed certificate
@@ -90,7 +161,7 @@ public class SignerConfig {
             X500Name subject = new X500Name("CN=SelfCert");
             Date notBefore = new Date(System.currentTimeMillis() - 1000L * 60 * 60 * 24);
             Date notAfter = new Date(System.currentTimeMillis() + 1000L * 60 * 60 * 24 * 365);
-            ContentSigner contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate());
+            ContentSigner contentSigner = new JcaContentSignerBuilder(SignedJar.signatureAlgorithm(this.keyAlgorithm)).build(keyPair.getPrivate());
 
             X509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(
                     issuer,
@@ -112,7 +183,7 @@ public class SignerConfig {
             try (FileOutputStream fos = new FileOutputStream(this.keystorePath)) {
                 keystore.store(fos, this.keystorePassword);
             }
-        } catch (CertificateException | NoSuchAlgorithmException | KeyStoreException | OperatorCreationException e) {
+        } catch (CertificateException | NoSuchAlgorithmException | InvalidAlgorithmParameterException | KeyStoreException | OperatorCreationException e) {
             throw new SecurityException(e);
         }
     }
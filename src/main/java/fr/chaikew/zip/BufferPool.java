@@ -0,0 +1,47 @@
+package fr.chaikew.zip;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of same-sized I/O buffers, so copy loops reuse their buffers across
+ * entries (and across patches) instead of allocating per entry. It only
+ * retains as many buffers as were in use at once. Thread safe.
+ */
+public final class BufferPool {
+    private final int mBufferSize;
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<>();
+
+    /**
+     * Constructor.
+     * @param bufferSize
+     *            capacity of the pooled buffers, in bytes
+     */
+    public BufferPool(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("buffer size must be positive");
+        mBufferSize = bufferSize;
+    }
+
+    public int bufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Takes a cleared buffer out of the pool, allocating it if the pool is
+     * empty. The buffer is array-backed, see {@link ByteBuffer#array()}.
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = mFree.pollFirst();
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(mBufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer obtained from {@link #acquire()} to the pool. */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer.capacity() == mBufferSize)
+            mFree.addFirst(buffer);
+    }
+}
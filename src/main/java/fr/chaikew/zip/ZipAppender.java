@@ -0,0 +1,150 @@
+package fr.chaikew.zip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Rewrites a ZIP file in place so that it holds some of its entries, left
+ * where they are, followed by all the entries of a second ZIP file. Only the
+ * appended entries, the central directory and the end record are written,
+ * so the I/O scales with what changed rather than with the ZIP file. The
+ * bytes of the dropped entries that sit before the kept ones stay in the
+ * file, unreferenced.
+ */
+public final class ZipAppender {
+    private static final int EXT_SIG = 0x08074b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_HEADER_LEN = 22;
+    private static final int CEN_OFFSET_FIELD = 42;
+    private static final int ZERO_CHUNK_LEN = 4096;
+
+    private ZipAppender() {
+    }
+
+    /**
+     * Appends the entries of {@code appended} after the last kept entry of
+     * {@code zip}, and rewrites the central directory of {@code zip}.
+     * @param zip
+     *            the ZIP file to rewrite, opened for reading and writing
+     * @param directory
+     *            the current central directory of {@code zip}
+     * @param keptEntries
+     *            entries of {@code directory} to keep, in the order they are
+     *            to be listed
+     * @param appended
+     *            the ZIP file whose entries are appended, read from its start
+     * @param alignment
+     *            the appended entries are moved by a multiple of this, so
+     *            any alignment they have within {@code appended} (up to this
+     *            value) holds within {@code zip}
+     * @throws ZipException
+     *             if the result would need ZIP64
+     * @throws IOException
+     *             on read / write errors, {@code zip} is then left corrupt:
+     *             only use this on a copy
+     */
+    public static void append(FileChannel zip, ZipCentralDirectory directory,
+                              List<ZipCentralDirectory.Entry> keptEntries,
+                              FileChannel appended, int alignment)
+            throws IOException {
+        ZipCentralDirectory appendedDirectory = ZipCentralDirectory.read(appended);
+        int count = keptEntries.size() + appendedDirectory.entries().size();
+        if (count > 0xFFFF)
+            throw new ZipException("ZIP64 is not supported (" + count + " entries)");
+
+        long keptEnd = 0;
+        for (ZipCentralDirectory.Entry entry : keptEntries)
+            keptEnd = Math.max(keptEnd, entryEnd(zip, entry));
+        long appendOffset = (keptEnd + alignment - 1) / alignment * alignment;
+        long centralDirectoryOffset = appendOffset + appendedDirectory.offset();
+
+        // the records are read before anything is written, the old central directory is likely overwritten
+        ByteBuffer oldCen = ByteBuffer.allocate((int) directory.size());
+        ZipCentralDirectory.readFully(zip, oldCen, directory.offset());
+        ByteBuffer appendedCen = ByteBuffer.allocate((int) appendedDirectory.size());
+        ZipCentralDirectory.readFully(appended, appendedCen, appendedDirectory.offset());
+
+        ByteBuffer cen = ByteBuffer.allocate((int) (directory.size() + appendedDirectory.size() + END_HEADER_LEN))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (ZipCentralDirectory.Entry entry : keptEntries) {
+            int recordStart = (int) (entry.recordOffset - directory.offset());
+            cen.put(oldCen.array(), recordStart, entry.recordLength);
+        }
+        for (ZipCentralDirectory.Entry entry : appendedDirectory.entries()) {
+            int recordStart = (int) (entry.recordOffset - appendedDirectory.offset());
+            int position = cen.position();
+            cen.put(appendedCen.array(), recordStart, entry.recordLength);
+            cen.putInt(position + CEN_OFFSET_FIELD, toUInt32(entry.localHeaderOffset + appendOffset));
+        }
+        int centralDirectorySize = cen.position();
+
+        cen.putInt(END_SIG);
+        cen.putShort((short) 0); // disk number
+        cen.putShort((short) 0); // disk with the central directory
+        cen.putShort((short) count);
+        cen.putShort((short) count);
+        cen.putInt(centralDirectorySize);
+        cen.putInt(toUInt32(centralDirectoryOffset));
+        cen.putShort((short) 0); // comment length
+        cen.flip();
+
+        // from here on the file is being modified
+        writeZeros(zip, keptEnd, appendOffset - keptEnd);
+        long transferred = 0;
+        appended.position(0);
+        while (transferred < appendedDirectory.offset()) {
+            long n = zip.transferFrom(appended, appendOffset + transferred, appendedDirectory.offset() - transferred);
+            if (n <= 0)
+                throw new ZipException("unexpected end of appended ZIP file");
+            transferred += n;
+        }
+        writeFully(zip, cen, centralDirectoryOffset);
+        zip.truncate(centralDirectoryOffset + centralDirectorySize + END_HEADER_LEN);
+    }
+
+    /**
+     * Returns the offset right after an entry's data, data descriptor
+     * included.
+     */
+    static long entryEnd(FileChannel zip, ZipCentralDirectory.Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ZipCentralDirectory.LOC_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        ZipCentralDirectory.readFully(zip, header, entry.localHeaderOffset);
+        if (header.getInt(0) != ZipCentralDirectory.LOC_SIG)
+            throw new ZipException(entry.name + ": invalid local header");
+
+        long end = entry.localHeaderOffset + ZipCentralDirectory.LOC_HEADER_LEN
+                + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF) + entry.compressedSize;
+        if ((header.getShort(6) & 0x08) != 0) {
+            // data descriptor, with an optional signature
+            ByteBuffer signature = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            ZipCentralDirectory.readFully(zip, signature, end);
+            end += signature.getInt(0) == EXT_SIG ? 16 : 12;
+        }
+        return end;
+    }
+
+    private static void writeZeros(FileChannel zip, long position, long length) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(length, ZERO_CHUNK_LEN));
+        while (length > 0) {
+            zeros.clear().limit((int) Math.min(length, zeros.capacity()));
+            int written = zip.write(zeros, position);
+            position += written;
+            length -= written;
+        }
+    }
+
+    private static void writeFully(FileChannel zip, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining())
+            position += zip.write(src, position);
+    }
+
+    private static int toUInt32(long value) throws ZipException {
+        if (value > 0xFFFFFFFFL)
+            throw new ZipException("ZIP64 is not supported (offset " + value + ")");
+        return (int) value;
+    }
+}
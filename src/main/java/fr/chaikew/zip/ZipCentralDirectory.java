@@ -0,0 +1,195 @@
+package fr.chaikew.zip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of a ZIP file, read straight from a {@link FileChannel}.
+ * Unlike {@link java.util.zip.ZipFile} it exposes the offsets of the local
+ * headers, so entries can be read (or kept) in place. ZIP64 archives are not
+ * supported, which is fine for APKs.
+ * @see <a href="https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT">ZIP
+ *      format specification</a>
+ */
+public final class ZipCentralDirectory {
+    static final int LOC_SIG = 0x04034b50;
+    static final int LOC_HEADER_LEN = 30;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_HEADER_LEN = 46;
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_HEADER_LEN = 22;
+    private static final int MAX_COMMENT_LEN = 0xFFFF;
+
+    private final List<Entry> mEntries;
+    private final long mOffset;
+    private final long mSize;
+
+    private ZipCentralDirectory(List<Entry> entries, long offset, long size) {
+        mEntries = Collections.unmodifiableList(entries);
+        mOffset = offset;
+        mSize = size;
+    }
+
+    /** Returns the entries, in central directory order. */
+    public List<Entry> entries() {
+        return mEntries;
+    }
+
+    /** Returns the offset of the central directory in the file. */
+    public long offset() {
+        return mOffset;
+    }
+
+    /** Returns the size of the central directory, in bytes. */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the entry with the given name, or {@code null}.
+     * @param name
+     *            name of the entry
+     */
+    public Entry find(String name) {
+        for (Entry entry : mEntries) {
+            if (entry.name.equals(name))
+                return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the central directory of a ZIP file.
+     * @param channel
+     *            the ZIP file, its position is left untouched
+     * @throws ZipException
+     *             if the file isn't a (supported) ZIP file
+     * @throws IOException
+     *             on read errors
+     */
+    public static ZipCentralDirectory read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailLen = (int) Math.min(fileSize, END_HEADER_LEN + MAX_COMMENT_LEN);
+        ByteBuffer tail = ByteBuffer.allocate(tailLen).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, tail, fileSize - tailLen);
+
+        long tailOffset = fileSize - tailLen;
+        int end = -1;
+        for (int i = tailLen - END_HEADER_LEN; i >= 0; i--) {
+            if (tail.getInt(i) != END_SIG)
+                continue;
+            if (i + END_HEADER_LEN + (tail.getShort(i + 20) & 0xFFFF) == tailLen
+                    || isCentralDirectoryBefore(channel, tail, i, tailOffset + i)) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new ZipException("end of central directory not found");
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long size = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL)
+            throw new ZipException("ZIP64 is not supported");
+        if (offset + size > tailOffset + end)
+            throw new ZipException("invalid central directory bounds");
+
+        ByteBuffer cen = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, cen, offset);
+
+        List<Entry> entries = new ArrayList<>(count);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + CEN_HEADER_LEN > size || cen.getInt(pos) != CEN_SIG)
+                throw new ZipException("invalid central directory record #" + i);
+
+            int nameLen = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLen = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLen = cen.getShort(pos + 32) & 0xFFFF;
+            int recordLen = CEN_HEADER_LEN + nameLen + extraLen + commentLen;
+            if (pos + recordLen > size)
+                throw new ZipException("invalid central directory record #" + i);
+
+            entries.add(new Entry(
+                    new String(cen.array(), pos + CEN_HEADER_LEN, nameLen, StandardCharsets.UTF_8),
+                    cen.getShort(pos + 10) & 0xFFFF,
+                    cen.getInt(pos + 16) & 0xFFFFFFFFL,
+                    cen.getInt(pos + 20) & 0xFFFFFFFFL,
+                    cen.getInt(pos + 24) & 0xFFFFFFFFL,
+                    cen.getInt(pos + 42) & 0xFFFFFFFFL,
+                    offset + pos,
+                    recordLen
+            ));
+            pos += recordLen;
+        }
+
+        return new ZipCentralDirectory(entries, offset, size);
+    }
+
+    /**
+     * Whether an end record whose comment doesn't run to the end of the file
+     * (trailing bytes after the ZIP file) is a real one: like
+     * {@link java.util.zip.ZipFile}, it is accepted if a central directory
+     * record sits right where it says the central directory starts, and the
+     * central directory ends right before it.
+     */
+    private static boolean isCentralDirectoryBefore(FileChannel channel, ByteBuffer tail, int end, long endOffset)
+            throws IOException {
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long size = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long offset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (offset + size != endOffset)
+            return false;
+        if (count == 0)
+            return size == 0;
+
+        ByteBuffer signature = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, signature, offset);
+        return signature.getInt(0) == CEN_SIG;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0)
+                throw new ZipException("unexpected end of ZIP file");
+            position += read;
+        }
+        dst.flip();
+    }
+
+    /** One central directory record. */
+    public static final class Entry {
+        public final String name;
+        /** Compression method, {@link java.util.zip.ZipEntry#STORED} or {@link java.util.zip.ZipEntry#DEFLATED}. */
+        public final int method;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        public final long localHeaderOffset;
+        /** Offset of this record in the file. */
+        public final long recordOffset;
+        /** Length of this record, name, extra field and comment included. */
+        public final int recordLength;
+
+        Entry(String name, int method, long crc, long compressedSize, long size,
+              long localHeaderOffset, long recordOffset, int recordLength) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+        }
+    }
+}
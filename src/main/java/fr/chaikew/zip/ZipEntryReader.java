@@ -0,0 +1,174 @@
+package fr.chaikew.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reusable stream over the uncompressed contents of ZIP entries, read with
+ * positional {@link FileChannel} reads. One reader owns one {@link Inflater}
+ * and one pooled input buffer, and is re-pointed at each entry with
+ * {@link #open(ZipCentralDirectory.Entry)}, so reading entry after entry
+ * allocates nothing. The CRC-32 is checked as the data goes through.
+ * Not thread safe: use one reader per worker.
+ */
+public final class ZipEntryReader extends InputStream {
+    private static final byte[] DUMMY_BYTE = new byte[1];
+
+    private final FileChannel mChannel;
+    private final BufferPool mPool;
+    private final ByteBuffer mInput;
+    private final ByteBuffer mHeader;
+    private final Inflater mInflater;
+    private final CRC32 mCrc;
+    private final byte[] mSingleByte = new byte[1];
+
+    private ZipCentralDirectory.Entry mEntry;
+    private long mPosition;
+    private long mRemaining;
+    private long mProduced;
+    private boolean mEof = true;
+    private boolean mDummyByteFed;
+
+    /**
+     * Constructor.
+     * @param channel
+     *            the ZIP file, its position is left untouched
+     * @param pool
+     *            pool the input buffer is taken from, it is given back by
+     *            {@link #close()}
+     */
+    public ZipEntryReader(FileChannel channel, BufferPool pool) {
+        mChannel = channel;
+        mPool = pool;
+        mInput = pool.acquire();
+        mHeader = ByteBuffer.allocate(ZipCentralDirectory.LOC_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        mInflater = new Inflater(true);
+        mCrc = new CRC32();
+    }
+
+    /**
+     * Positions the reader at the start of an entry's contents.
+     * @param entry
+     *            an entry of the ZIP file this reader was created on
+     * @throws ZipException
+     *             on unsupported compression or invalid local header
+     * @throws IOException
+     *             on read errors
+     */
+    public void open(ZipCentralDirectory.Entry entry) throws IOException {
+        if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)
+            throw new ZipException(entry.name + ": unsupported compression method " + entry.method);
+
+        mHeader.clear();
+        ZipCentralDirectory.readFully(mChannel, mHeader, entry.localHeaderOffset);
+        if (mHeader.getInt(0) != ZipCentralDirectory.LOC_SIG)
+            throw new ZipException(entry.name + ": invalid local header");
+
+        mEntry = entry;
+        mPosition = entry.localHeaderOffset + ZipCentralDirectory.LOC_HEADER_LEN
+                + (mHeader.getShort(26) & 0xFFFF) + (mHeader.getShort(28) & 0xFFFF);
+        mRemaining = entry.compressedSize;
+        mProduced = 0;
+        mEof = false;
+        mDummyByteFed = false;
+        mInflater.reset();
+        mCrc.reset();
+        mInput.clear().limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(mSingleByte, 0, 1) == -1 ? -1 : mSingleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (mEof)
+            return -1;
+        if (len == 0)
+            return 0;
+
+        int read = mEntry.method == ZipEntry.STORED ? readStored(b, off, len) : readDeflated(b, off, len);
+        if (read < 0) {
+            finishEntry();
+            return -1;
+        }
+
+        mCrc.update(b, off, read);
+        mProduced += read;
+        if (mEntry.method == ZipEntry.STORED && mRemaining == 0)
+            finishEntry();
+        return read;
+    }
+
+    private int readStored(byte[] b, int off, int len) throws IOException {
+        if (mRemaining == 0)
+            return -1;
+
+        ByteBuffer dst = mInput;
+        dst.clear().limit((int) Math.min(Math.min(len, dst.capacity()), mRemaining));
+        int read = mChannel.read(dst, mPosition);
+        if (read < 0)
+            throw new ZipException(mEntry.name + ": unexpected end of ZIP file");
+        System.arraycopy(dst.array(), 0, b, off, read);
+        mPosition += read;
+        mRemaining -= read;
+        return read;
+    }
+
+    private int readDeflated(byte[] b, int off, int len) throws IOException {
+        try {
+            while (true) {
+                int inflated = mInflater.inflate(b, off, len);
+                if (inflated > 0)
+                    return inflated;
+                if (mInflater.finished())
+                    return -1;
+                if (mInflater.needsDictionary())
+                    throw new ZipException(mEntry.name + ": deflate dictionaries are not supported");
+                if (mRemaining == 0) {
+                    // same as ZipFile: raw inflate may want one byte past the stream
+                    if (mDummyByteFed)
+                        throw new ZipException(mEntry.name + ": truncated deflate stream");
+                    mDummyByteFed = true;
+                    mInflater.setInput(DUMMY_BYTE, 0, 1);
+                    continue;
+                }
+
+                mInput.clear().limit((int) Math.min(mInput.capacity(), mRemaining));
+                int read = mChannel.read(mInput, mPosition);
+                if (read < 0)
+                    throw new ZipException(mEntry.name + ": unexpected end of ZIP file");
+                mPosition += read;
+                mRemaining -= read;
+                mInflater.setInput(mInput.array(), 0, read);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(mEntry.name + ": " + e.getMessage());
+        }
+    }
+
+    private void finishEntry() throws ZipException {
+        mEof = true;
+        if (mProduced != mEntry.size)
+            throw new ZipException(mEntry.name + ": invalid entry size (expected " + mEntry.size + " but got " + mProduced + " bytes)");
+        if (mCrc.getValue() != mEntry.crc)
+            throw new ZipException(mEntry.name + ": invalid entry CRC-32");
+    }
+
+    /** Releases the inflater and gives the input buffer back to the pool. */
+    @Override
+    public void close() {
+        mEof = true;
+        mInflater.end();
+        mPool.release(mInput);
+    }
+}
@@ -0,0 +1,216 @@
+package fr.chaikew.signing;
+
+import fr.chaikew.zip.ZipCentralDirectory;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static fr.chaikew.zip.ZipTestUtil.bytes;
+import static fr.chaikew.zip.ZipTestUtil.crc;
+import static fr.chaikew.zip.ZipTestUtil.dataOffset;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SignedJarTest {
+    /** 2010-01-01, anything later means an entry got the current time. */
+    private static final long FIXED_TIME_UPPER_BOUND = 1262304000000L;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void storedEntriesAreAligned() throws IOException {
+        File jar = tmp.resolve("aligned.apk").toFile();
+        SignerConfig config = SignerConfig.DEFAULT_CONFIG.withPath(tmp.resolve("keystore.bks").toString());
+        byte[] buffer = new byte[4096];
+
+        // odd sizes and name lengths, so no entry would be aligned without padding
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        for (int i = 0; i < 6; i++) {
+            String name = i % 2 == 0 ? "assets/" + i + "abc".substring(i / 2) + ".bin" : "lib/arm64-v8a/lib" + i + ".so";
+            contents.put(name, bytes(1000 * i + 7, i));
+        }
+
+        try (OutputStream os = Files.newOutputStream(jar.toPath());
+             SignedJar signedJar = config.createSignedJar(os)) {
+            signedJar.setZipAligned(true);
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                byte[] data = entry.getValue();
+                signedJar.addFileContents(entry.getKey(), new ByteArrayInputStream(data), data.length, crc(data), false, buffer);
+            }
+            signedJar.addFileContents("classes.dex", bytes(5000, 9), true, false);
+        }
+
+        int stored = 0;
+        try (FileChannel channel = FileChannel.open(jar.toPath())) {
+            for (ZipCentralDirectory.Entry entry : ZipCentralDirectory.read(channel).entries()) {
+                if (entry.method != ZipEntry.STORED)
+                    continue;
+
+                long dataOffset = dataOffset(channel, entry);
+                int alignment = entry.name.endsWith(".so") ? 4096 : 4;
+                assertEquals(0, dataOffset % alignment, entry.name + " at " + dataOffset);
+                stored++;
+            }
+        }
+        assertTrue(stored >= contents.size(), "stored entries: " + stored);
+
+        // the padding must not get in the way of regular readers
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                try (InputStream is = zip.getInputStream(zip.getEntry(entry.getKey()))) {
+                    assertArrayEquals(entry.getValue(), IOUtils.toByteArray(is), entry.getKey());
+                }
+            }
+        }
+    }
+
+    @Test
+    void outputVerifies() throws IOException {
+        File jar = tmp.resolve("signed.apk").toFile();
+        // the JDK treats SHA-1 digested JARs as unsigned (jdk.jar.disabledAlgorithms), Android doesn't:
+        // the manifest and signature file are encoded the same way whatever the digest
+        SignerConfig config = SignerConfig.DEFAULT_CONFIG
+                .withPath(tmp.resolve("keystore.bks").toString())
+                .withDigestAlgorithm(SignerConfig.DIGEST_ALGORITHM_SHA256);
+        Map<String, byte[]> contents = signableContents();
+
+        writeSignedJar(jar, config, contents);
+
+        assertVerifies(jar, contents);
+    }
+
+    @Test
+    void ecOutputVerifies() throws IOException {
+        File jar = tmp.resolve("signed-ec.apk").toFile();
+        SignerConfig config = SignerConfig.EC_CONFIG.withPath(tmp.resolve("keystore-ec.bks").toString());
+        Map<String, byte[]> contents = signableContents();
+
+        writeSignedJar(jar, config, contents);
+
+        assertVerifies(jar, contents);
+        try (JarFile jarFile = new JarFile(jar)) {
+            assertNotNull(jarFile.getEntry("META-INF/INTERMED.EC"), "signature block");
+            assertNull(jarFile.getEntry("META-INF/INTERMED.RSA"), "RSA signature block");
+            String sigFile = new String(IOUtils.toByteArray(jarFile.getInputStream(jarFile.getEntry("META-INF/INTERMED.SF"))), StandardCharsets.UTF_8);
+            assertTrue(sigFile.contains("SHA-256-Digest-Manifest: "), sigFile);
+            String manifest = new String(IOUtils.toByteArray(jarFile.getInputStream(jarFile.getEntry(JarFile.MANIFEST_NAME))), StandardCharsets.UTF_8);
+            assertTrue(manifest.contains("\r\nSHA-256-Digest: "), manifest);
+        }
+    }
+
+    @Test
+    void outputIsReproducible() throws IOException {
+        assertReproducible(SignerConfig.DEFAULT_CONFIG.withPath(tmp.resolve("keystore.bks").toString()));
+    }
+
+    @Test
+    void ecOutputIsReproducible() throws IOException {
+        assertReproducible(SignerConfig.EC_CONFIG.withPath(tmp.resolve("keystore-ec.bks").toString()));
+    }
+
+    /** Signs the same entries twice with the same keystore, the patch memo relies on it. */
+    private void assertReproducible(SignerConfig config) throws IOException {
+        File first = tmp.resolve("first.apk").toFile();
+        File second = tmp.resolve("second.apk").toFile();
+        Map<String, byte[]> contents = signableContents();
+
+        writeSignedJar(first, config, contents);
+        writeSignedJar(second, config, contents);
+
+        assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+
+        // a fixed entry time rather than the current one, which DOS times would round to 2 seconds
+        try (JarFile jarFile = new JarFile(first)) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                assertTrue(entry.getTime() < FIXED_TIME_UPPER_BOUND, entry.getName() + " time " + entry.getTime());
+            }
+        }
+    }
+
+    /** The JDK reads lines of up to 512 bytes, the 72 bytes limit has to be checked separately. */
+    private static void assertLinesWrapped(String name, byte[] data) {
+        int lineStart = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\r' && i + 1 < data.length && data[i + 1] == '\n') {
+                assertTrue(i - lineStart <= 72, name + ": line of " + (i - lineStart) + " bytes at " + lineStart);
+                lineStart = i + 2;
+            }
+        }
+        assertEquals(data.length, lineStart, name + " must end with a line break");
+    }
+
+    /**
+     * Writes entries whose names need the manifest's 72-byte line wrapping,
+     * multi-byte UTF-8 characters included.
+     */
+    private static Map<String, byte[]> signableContents() {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("classes.dex", bytes(5000, 1));
+        contents.put("res/raw/" + "long_resource_name_".repeat(12) + ".bin", bytes(300, 2));
+        contents.put("assets/\u00e9l\u00e8ve/\u65e5\u672c\u8a9e/" + "\u00e9".repeat(40) + "\u20ac\u20ac.txt", bytes(200, 3));
+        contents.put("assets/" + "x".repeat(57) + "\u00e9.bin", bytes(100, 4)); // split inside the 2-byte character
+        contents.put("lib/arm64-v8a/libgame.so", bytes(7000, 5));
+        return contents;
+    }
+
+    private static void writeSignedJar(File jar, SignerConfig config, Map<String, byte[]> contents) throws IOException {
+        byte[] buffer = new byte[4096];
+        try (OutputStream os = Files.newOutputStream(jar.toPath());
+             SignedJar signedJar = config.createSignedJar(os)) {
+            signedJar.setZipAligned(true);
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                byte[] data = entry.getValue();
+                boolean compression = !entry.getKey().endsWith(".so");
+                signedJar.addFileContents(entry.getKey(), new ByteArrayInputStream(data), data.length,
+                        compression ? -1 : crc(data), compression, buffer);
+            }
+        }
+    }
+
+    /** Reads every entry with verification on, as the package manager's v1 check does. */
+    private static void assertVerifies(File jar, Map<String, byte[]> contents) throws IOException {
+        try (JarFile jarFile = new JarFile(jar, true)) {
+            int verified = 0;
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                byte[] data;
+                try (InputStream is = jarFile.getInputStream(entry)) {
+                    data = IOUtils.toByteArray(is);
+                }
+                if (entry.getName().equals(JarFile.MANIFEST_NAME) || entry.getName().endsWith(".SF"))
+                    assertLinesWrapped(entry.getName(), data);
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/"))
+                    continue;
+
+                assertArrayEquals(contents.get(entry.getName()), data, entry.getName());
+                assertNotNull(entry.getCodeSigners(), entry.getName() + " is not signed");
+                verified++;
+            }
+            assertEquals(contents.size(), verified);
+        }
+    }
+}
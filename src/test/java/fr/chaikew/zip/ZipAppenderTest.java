@@ -0,0 +1,123 @@
+package fr.chaikew.zip;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static fr.chaikew.zip.ZipTestUtil.bytes;
+import static fr.chaikew.zip.ZipTestUtil.crc;
+import static fr.chaikew.zip.ZipTestUtil.dataOffset;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ZipAppenderTest {
+    private static final int ALIGNMENT = 4096;
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void appendedAndKeptEntriesAreReadable() throws IOException {
+        Map<String, byte[]> original = new LinkedHashMap<>();
+        original.put("keep1.txt", bytes(3001, 1));
+        original.put("classes.dex", bytes(50000, 2));
+        original.put("keep2.bin", bytes(20000, 3)); // deflated, with a data descriptor
+        Map<String, byte[]> appended = new LinkedHashMap<>();
+        appended.put("lib/arm64-v8a/libsinum.so", bytes(7000, 4));
+        appended.put("classes.dex", bytes(60000, 5));
+
+        File zip = writeZip("input.apk", original, "keep1.txt");
+        File changes = writeZip("changes.zip", appended, "lib/arm64-v8a/libsinum.so");
+
+        long appendedDataOffset;
+        try (FileChannel changesChannel = FileChannel.open(changes.toPath())) {
+            appendedDataOffset = dataOffset(changesChannel,
+                    ZipCentralDirectory.read(changesChannel).find("lib/arm64-v8a/libsinum.so"));
+
+            try (FileChannel zipChannel = FileChannel.open(zip.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ZipCentralDirectory directory = ZipCentralDirectory.read(zipChannel);
+                List<ZipCentralDirectory.Entry> kept = new ArrayList<>();
+                for (ZipCentralDirectory.Entry entry : directory.entries()) {
+                    if (!entry.name.equals("classes.dex"))
+                        kept.add(entry);
+                }
+                ZipAppender.append(zipChannel, directory, kept, changesChannel, ALIGNMENT);
+            }
+        }
+
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        expected.put("keep1.txt", original.get("keep1.txt"));
+        expected.put("keep2.bin", original.get("keep2.bin"));
+        expected.putAll(appended);
+
+        // central directory order, contents and CRC-32 / size checked by ZipEntryReader
+        BufferPool pool = new BufferPool(4096);
+        try (FileChannel channel = FileChannel.open(zip.toPath());
+             ZipEntryReader reader = new ZipEntryReader(channel, pool)) {
+            ZipCentralDirectory directory = ZipCentralDirectory.read(channel);
+            List<String> names = new ArrayList<>();
+            for (ZipCentralDirectory.Entry entry : directory.entries()) {
+                names.add(entry.name);
+                reader.open(entry);
+                assertArrayEquals(expected.get(entry.name), IOUtils.toByteArray(reader), entry.name);
+            }
+            assertEquals(new ArrayList<>(expected.keySet()), names);
+            assertEquals(directory.offset() + directory.size() + 22, channel.size());
+
+            // moved by a multiple of the alignment, so the .so keeps its page alignment
+            long dataOffset = dataOffset(channel, directory.find("lib/arm64-v8a/libsinum.so"));
+            assertEquals(appendedDataOffset % ALIGNMENT, dataOffset % ALIGNMENT);
+        }
+
+        // and the result is a valid zip for regular readers
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals(expected.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                try (InputStream is = zipFile.getInputStream(zipFile.getEntry(entry.getKey()))) {
+                    assertArrayEquals(entry.getValue(), IOUtils.toByteArray(is), entry.getKey());
+                }
+            }
+            assertNull(zipFile.getComment(), "comment");
+        }
+    }
+
+    /** Writes a zip file, the stored entries are listed, the others are deflated. */
+    private File writeZip(String name, Map<String, byte[]> contents, String... storedEntries) throws IOException {
+        File file = tmp.resolve(name).toFile();
+        try (OutputStream os = Files.newOutputStream(file.toPath());
+             ZipOutputStream zos = new ZipOutputStream(os)) {
+            for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+                byte[] data = content.getValue();
+                ZipEntry entry = new ZipEntry(content.getKey());
+                if (Arrays.asList(storedEntries).contains(content.getKey())) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc(data));
+                }
+                zos.putNextEntry(entry);
+                zos.write(data);
+                zos.closeEntry();
+            }
+        }
+        return file;
+    }
+}
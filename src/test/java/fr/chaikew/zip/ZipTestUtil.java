@@ -0,0 +1,40 @@
+package fr.chaikew.zip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Fixtures shared by the ZIP and JAR tests.
+ */
+public final class ZipTestUtil {
+    private ZipTestUtil() {
+    }
+
+    /** Returns deterministic, poorly compressible test data. */
+    public static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i * 31 + seed + i / 97);
+        return bytes;
+    }
+
+    public static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    /** Returns the offset of an entry's data, right after its local header. */
+    public static long dataOffset(FileChannel channel, ZipCentralDirectory.Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ZipCentralDirectory.LOC_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        ZipCentralDirectory.readFully(channel, header, entry.localHeaderOffset);
+        assertEquals(ZipCentralDirectory.LOC_SIG, header.getInt(0), entry.name + ": local header signature");
+        return entry.localHeaderOffset + ZipCentralDirectory.LOC_HEADER_LEN
+                + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+}